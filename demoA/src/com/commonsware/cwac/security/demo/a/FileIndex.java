@@ -0,0 +1,220 @@
+/***
+  Copyright (c) 2008-2014 CommonsWare, LLC
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+  by applicable law or agreed to in writing, software distributed under the
+  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+  OF ANY KIND, either express or implied. See the License for the specific
+  language governing permissions and limitations under the License.
+  
+  From _The Busy Coder's Guide to Android Development_
+    http://commonsware.com/Android
+ */
+
+package com.commonsware.cwac.security.demo.a;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.os.FileObserver;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import com.commonsware.cwac.security.ChunkedCipher;
+
+/**
+ * In-memory index of the files that FileProvider can
+ * serve: the top-level assets, plus any files in the
+ * provider's directory (which take precedence over assets
+ * of the same name). Files in that directory with the
+ * ENCRYPTED_SUFFIX are listed under their name minus the
+ * suffix, and are decrypted as they are served. The index
+ * is built on first use and
+ * rebuilt lazily after a FileObserver reports a change to
+ * the directory.
+ */
+class FileIndex {
+  static final String ENCRYPTED_SUFFIX=".cwsc";
+  private static final int CHANGES=FileObserver.CLOSE_WRITE
+      | FileObserver.MOVED_TO | FileObserver.MOVED_FROM
+      | FileObserver.DELETE;
+
+  private final File dir;
+  private final AssetManager assets;
+  private final Map<String, String> mimeTypes;
+  private final FileObserver observer;
+  private volatile Snapshot snapshot=null;
+  private volatile int generation=0;
+
+  FileIndex(File dir, AssetManager assets, Map<String, String> mimeTypes) {
+    this.dir=dir;
+    this.assets=assets;
+    this.mimeTypes=mimeTypes;
+
+    observer=new FileObserver(dir.getAbsolutePath(), CHANGES) {
+      @Override
+      public void onEvent(int event, String path) {
+        generation++;
+      }
+    };
+
+    observer.startWatching();
+  }
+
+  /**
+   * @return the entry for this file name, or null if there
+   *         is no such file to serve
+   */
+  Entry get(String name) {
+    return(getSnapshot().byName.get(name));
+  }
+
+  /**
+   * @return all entries, sorted by name
+   */
+  Entry[] list() {
+    return(getSnapshot().sorted);
+  }
+
+  String getMimeType(String name) {
+    int dot=name.lastIndexOf('.');
+
+    if (dot < 0) {
+      return(null);
+    }
+
+    return(mimeTypes.get(name.substring(dot)));
+  }
+
+  private Snapshot getSnapshot() {
+    Snapshot result=snapshot;
+
+    if (result == null || result.generation != generation) {
+      synchronized(this) {
+        result=snapshot;
+
+        if (result == null || result.generation != generation) {
+          // a change during build() bumps generation again,
+          // so the next call rebuilds
+
+          int current=generation;
+
+          result=build(current);
+          snapshot=result;
+        }
+      }
+    }
+
+    return(result);
+  }
+
+  private Snapshot build(int generation) {
+    HashMap<String, Entry> byName=new HashMap<String, Entry>();
+
+    try {
+      String[] names=assets.list("");
+
+      if (names != null) {
+        for (String name : names) {
+          if (getMimeType(name) != null) {
+            byName.put(name, new Entry(name, getMimeType(name),
+                                       getAssetLength(name), 0, false));
+          }
+        }
+      }
+    }
+    catch (IOException e) {
+      Log.e("FileIndex", "Exception listing assets", e);
+    }
+
+    File[] files=dir.listFiles();
+
+    if (files != null) {
+      for (File f : files) {
+        String name=f.getName();
+        boolean encrypted=name.endsWith(ENCRYPTED_SUFFIX);
+
+        if (encrypted) {
+          name=
+              name.substring(0, name.length() - ENCRYPTED_SUFFIX.length());
+        }
+
+        if (f.isFile() && getMimeType(name) != null) {
+          byName.put(name, new Entry(name, getMimeType(name),
+                                     encrypted ? getDecryptedLength(f)
+                                         : f.length(), f.lastModified(),
+                                     encrypted));
+        }
+      }
+    }
+
+    return(new Snapshot(generation, byName));
+  }
+
+  private long getDecryptedLength(File f) {
+    try {
+      return(ChunkedCipher.getLength(f));
+    }
+    catch (IOException e) {
+      Log.e("FileIndex", "Exception reading encrypted file", e);
+
+      return(-1);
+    }
+  }
+
+  private long getAssetLength(String name) {
+    try {
+      AssetFileDescriptor afd=assets.openFd(name);
+
+      try {
+        return(afd.getLength());
+      }
+      finally {
+        afd.close();
+      }
+    }
+    catch (IOException e) {
+      return(-1); // compressed, so length unknown until copied
+    }
+  }
+
+  static class Entry {
+    final String name;
+    final String mimeType;
+    final long size;
+    final long lastModified;
+    final boolean encrypted;
+
+    Entry(String name, String mimeType, long size, long lastModified,
+          boolean encrypted) {
+      this.name=name;
+      this.mimeType=mimeType;
+      this.size=size;
+      this.lastModified=lastModified;
+      this.encrypted=encrypted;
+    }
+  }
+
+  private static class Snapshot {
+    final int generation;
+    final HashMap<String, Entry> byName;
+    final Entry[] sorted;
+
+    Snapshot(int generation, HashMap<String, Entry> byName) {
+      this.generation=generation;
+      this.byName=byName;
+      sorted=byName.values().toArray(new Entry[byName.size()]);
+
+      Arrays.sort(sorted, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+          return(lhs.name.compareTo(rhs.name));
+        }
+      });
+    }
+  }
+}
@@ -16,18 +16,45 @@ package com.commonsware.cwac.security.demo.a;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
+import android.database.AbstractCursor;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import android.util.Log;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import com.commonsware.cwac.security.CallerVerifier;
+import com.commonsware.cwac.security.ChunkedCipher;
+import com.commonsware.cwac.security.SignatureUtils;
 
 public class FileProvider extends ContentProvider {
   public static final Uri CONTENT_URI=
@@ -37,48 +64,138 @@ public class FileProvider extends ContentProvider {
 
   static {
     MIME_TYPES.put(".pdf", "application/pdf");
+    MIME_TYPES.put(".txt", "text/plain");
   }
 
+  // generated content is written into pipes by a small, bounded
+  // pool; once the pool and its queue are full, further opens fail
+  // rather than pile up, and each writer blocks whenever its
+  // reader falls behind and the pipe buffer fills
+
+  private static final int MAX_WRITERS=2;
+  private static final int MAX_QUEUED_WRITERS=8;
+  private static final ThreadPoolExecutor WRITERS=
+      new ThreadPoolExecutor(MAX_WRITERS, MAX_WRITERS, 30,
+                             TimeUnit.SECONDS,
+                             new ArrayBlockingQueue<Runnable>(MAX_QUEUED_WRITERS));
+
+  static {
+    WRITERS.allowCoreThreadTimeOut(true);
+  }
+
+  // without a reliable pipe, a writer that fails part-way
+  // looks like a clean end of stream to the reader, so
+  // encrypted files up to this size are decrypted (and
+  // authenticated) in full before any of it is written
+
+  private static final int MAX_BUFFERED=256 * 1024;
+
     public static final String[] QUERY_RESULT = new String[]{"_display_name"};
+  public static final String COLUMN_SIZE="_size";
+  public static final String COLUMN_MIME_TYPE="mime_type";
+  public static final String COLUMN_LAST_MODIFIED="last_modified";
+  public static final String PARAM_OFFSET="offset";
+  private static final String PREFS_KEYS="keys";
+  private static final String PREF_FILE_KEY="fileKey";
+  private static ChunkedCipher cipher=null;
+  private static Handler proxyHandler=null;
+
+  private FileIndex index=null;
+  private CallerVerifier callers=null;
+  private final HashMap<String, Generator> generators=
+      new HashMap<String, Generator>();
 
     @Override
   public boolean onCreate() {
-    File f=new File(getContext().getFilesDir(), "test.pdf");
+    // nothing to do here: assets are served straight from the
+    // APK, or copied out on first use if they are compressed
 
-    if (!f.exists()) {
-      AssetManager assets=getContext().getResources().getAssets();
+    generators.put("listing.txt", new ListingGenerator());
 
-      try {
-        copy(assets.open("test.pdf"), f);
-      }
-      catch (IOException e) {
-        Log.e("FileProvider", "Exception copying from assets", e);
+    return(true);
+  }
 
-        return(false);
-      }
+  @Override
+  public String getType(Uri uri) {
+    String name=getAssetPath(uri);
+
+    if (generators.containsKey(name)) {
+      return(getIndex().getMimeType(name));
     }
 
-    return(true);
+    FileIndex.Entry entry=getIndex().get(name);
+
+    return(entry == null ? null : entry.mimeType);
   }
 
   @Override
-  public String getType(Uri uri) {
-    String path=uri.toString();
+  public AssetFileDescriptor openAssetFile(Uri uri, String mode)
+                                                                throws FileNotFoundException {
+    if (generators.containsKey(getAssetPath(uri))) {
+      return(new AssetFileDescriptor(openFile(uri, mode), 0,
+                                     AssetFileDescriptor.UNKNOWN_LENGTH));
+    }
+
+    FileIndex.Entry entry=getIndex().get(getAssetPath(uri));
+
+    if (entry == null) {
+      throw new FileNotFoundException(uri.getPath());
+    }
+
+    if (entry.encrypted) {
+      return(new AssetFileDescriptor(openFile(uri, mode), 0,
+                                     AssetFileDescriptor.UNKNOWN_LENGTH));
+    }
+
+    File f=new File(getContext().getFilesDir(), uri.getPath());
 
-    for (String extension : MIME_TYPES.keySet()) {
-      if (path.endsWith(extension)) {
-        return(MIME_TYPES.get(extension));
+    if (!f.exists()) {
+      try {
+        // uncompressed assets can be read in place, at their
+        // offset within the APK
+
+        return(getContext().getAssets().openFd(getAssetPath(uri)));
+      }
+      catch (FileNotFoundException e) {
+        // compressed (or missing), so fall through and
+        // materialize it
+      }
+      catch (IOException e) {
+        Log.e("FileProvider", "Exception opening asset", e);
       }
     }
 
-    return(null);
+    return(new AssetFileDescriptor(openFile(uri, mode), 0,
+                                   AssetFileDescriptor.UNKNOWN_LENGTH));
   }
 
   @Override
   public ParcelFileDescriptor openFile(Uri uri, String mode)
                                                             throws FileNotFoundException {
+    Generator generator=generators.get(getAssetPath(uri));
+
+    if (generator != null) {
+      getCallers().enforceCallerAllowed();
+
+      return(openPipe(generator));
+    }
+
+    FileIndex.Entry entry=getIndex().get(getAssetPath(uri));
+
+    if (entry == null) {
+      throw new FileNotFoundException(uri.getPath());
+    }
+
+    if (entry.encrypted) {
+      return(openDecrypted(uri));
+    }
+
     File f=new File(getContext().getFilesDir(), uri.getPath());
 
+    if (!f.exists()) {
+      materialize(getAssetPath(uri), f);
+    }
+
     if (f.exists()) {
       return(ParcelFileDescriptor.open(f,
                                        ParcelFileDescriptor.MODE_READ_ONLY));
@@ -90,9 +207,34 @@ public class FileProvider extends ContentProvider {
   @Override
   public Cursor query(Uri url, String[] projection, String selection,
                       String[] selectionArgs, String sort) {
-      MatrixCursor cursor = new MatrixCursor(QUERY_RESULT);
-      cursor.addRow(new Object[] {"test.pdf"});
-      return cursor;
+    String name=getAssetPath(url);
+    FileIndex.Entry[] entries;
+
+    if (name.length() == 0) {
+      getCallers().enforceCallerAllowed();
+      entries=getIndex().list();
+    }
+    else {
+      // an app granted access to this Uri (e.g., a PDF viewer
+      // asking for OpenableColumns) may query it, too
+
+      int granted=
+          getContext().checkCallingUriPermission(url,
+                                                 Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+      if (granted != PackageManager.PERMISSION_GRANTED) {
+        getCallers().enforceCallerAllowed();
+      }
+
+      FileIndex.Entry entry=getIndex().get(name);
+
+      entries=
+          (entry == null ? new FileIndex.Entry[0]
+              : new FileIndex.Entry[] { entry });
+    }
+
+    return(new IndexCursor(projection == null ? QUERY_RESULT : projection,
+                           entries));
   }
 
   @Override
@@ -111,16 +253,474 @@ public class FileProvider extends ContentProvider {
     throw new RuntimeException("Operation not supported");
   }
 
+  private ParcelFileDescriptor openPipe(Generator generator)
+                                                          throws FileNotFoundException {
+    ParcelFileDescriptor[] pipe;
+
+    try {
+      // a reliable pipe lets the writer report a failure to
+      // the reader, rather than just stopping
+
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+        pipe=ParcelFileDescriptor.createReliablePipe();
+      }
+      else {
+        pipe=ParcelFileDescriptor.createPipe();
+      }
+    }
+    catch (IOException e) {
+      Log.e("FileProvider", "Exception creating pipe", e);
+      throw new FileNotFoundException("Could not create pipe");
+    }
+
+    try {
+      WRITERS.execute(new PipeWriter(generator, pipe[1]));
+    }
+    catch (RejectedExecutionException e) {
+      closeQuietly(pipe[0]);
+      closeQuietly(pipe[1]);
+      throw new FileNotFoundException("Too many streams in progress");
+    }
+
+    return(pipe[0]);
+  }
+
+  /**
+   * Serves the decrypted content of an encrypted file. On
+   * API Level 26+, this is a seekable proxy file descriptor,
+   * and only the chunks covering the bytes that the client
+   * reads are decrypted. Older devices get a pipe, which
+   * cannot seek; there, as a non-standard extension for
+   * clients that know about it, the offset query parameter
+   * gives the position to start from.
+   */
+  private ParcelFileDescriptor openDecrypted(Uri uri)
+                                                    throws FileNotFoundException {
+    File f=
+        new File(getContext().getFilesDir(), getAssetPath(uri)
+            + FileIndex.ENCRYPTED_SUFFIX);
+    String offset=uri.getQueryParameter(PARAM_OFFSET);
+    ChunkedCipher.Reader reader;
+
+    try {
+      reader=getCipher(getContext()).open(f);
+    }
+    catch (IOException e) {
+      Log.e("FileProvider", "Exception opening encrypted file", e);
+      throw new FileNotFoundException(uri.getPath());
+    }
+    catch (GeneralSecurityException e) {
+      Log.e("FileProvider", "Exception opening encrypted file", e);
+      throw new FileNotFoundException(uri.getPath());
+    }
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      return(openProxy(uri, reader));
+    }
+
+    try {
+      long start=(offset == null ? 0 : Long.parseLong(offset));
+
+      return(openPipe(new DecryptingGenerator(reader, start)));
+    }
+    catch (NumberFormatException e) {
+      closeQuietly(reader);
+      throw new IllegalArgumentException("Invalid offset: " + offset);
+    }
+    catch (FileNotFoundException e) {
+      closeQuietly(reader);
+      throw e;
+    }
+  }
+
+  private ParcelFileDescriptor openProxy(Uri uri,
+                                         ChunkedCipher.Reader reader)
+                                                                     throws FileNotFoundException {
+    StorageManager storage=
+        (StorageManager)getContext().getSystemService(Context.STORAGE_SERVICE);
+
+    try {
+      return(storage.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY,
+                                             new DecryptingCallback(reader),
+                                             getProxyHandler()));
+    }
+    catch (IOException e) {
+      Log.e("FileProvider", "Exception opening proxy file descriptor", e);
+      closeQuietly(reader);
+      throw new FileNotFoundException(uri.getPath());
+    }
+  }
+
+  // all proxy file descriptor callbacks run on one thread,
+  // so each Reader is only ever used by that thread
+
+  synchronized static private Handler getProxyHandler() {
+    if (proxyHandler == null) {
+      HandlerThread thread=new HandlerThread("FileProvider-proxy");
+
+      thread.start();
+      proxyHandler=new Handler(thread.getLooper());
+    }
+
+    return(proxyHandler);
+  }
+
+  /**
+   * @return the cipher for this app's encrypted files, such
+   *         as for use in populating getFilesDir() with
+   *         files named with FileIndex.ENCRYPTED_SUFFIX; the
+   *         key is generated on first use and kept in
+   *         private SharedPreferences, which is suitable for
+   *         a demo, but not much more
+   */
+  synchronized static ChunkedCipher getCipher(Context ctxt)
+                                                           throws GeneralSecurityException {
+    if (cipher == null) {
+      SharedPreferences prefs=
+          ctxt.getSharedPreferences(PREFS_KEYS, Context.MODE_PRIVATE);
+      String hex=prefs.getString(PREF_FILE_KEY, null);
+
+      if (hex == null) {
+        byte[] key=new byte[16];
+
+        new SecureRandom().nextBytes(key);
+        hex=SignatureUtils.toHexStringWithColons(key);
+        prefs.edit().putString(PREF_FILE_KEY, hex).commit();
+      }
+
+      cipher=new ChunkedCipher(SignatureUtils.fromHexString(hex));
+    }
+
+    return(cipher);
+  }
+
+  // listings and generated content are only for apps signed
+  // by the same key as this one; individual files (contents
+  // and metadata) are also available to apps granted access
+  // to their Uri, such as a PDF viewer
+
+  synchronized private CallerVerifier getCallers() {
+    if (callers == null) {
+      callers=new CallerVerifier(getContext());
+
+      try {
+        callers.allowSignerOf(getContext().getPackageName());
+      }
+      catch (NameNotFoundException e) {
+        Log.e("FileProvider", "Exception finding our own signature", e);
+      }
+      catch (NoSuchAlgorithmException e) {
+        Log.e("FileProvider", "Exception finding our own signature", e);
+      }
+    }
+
+    return(callers);
+  }
+
+  synchronized private FileIndex getIndex() {
+    if (index == null) {
+      index=
+          new FileIndex(getContext().getFilesDir(),
+                        getContext().getAssets(), MIME_TYPES);
+    }
+
+    return(index);
+  }
+
+  private static String getAssetPath(Uri uri) {
+    String path=uri.getPath();
+
+    return(path.startsWith("/") ? path.substring(1) : path);
+  }
+
+  synchronized private void materialize(String assetPath, File dst) {
+    if (!dst.exists()) {
+      AssetManager assets=getContext().getAssets();
+      File tmp=new File(dst.getPath() + ".tmp");
+
+      try {
+        copy(assets.open(assetPath), tmp);
+
+        if (!tmp.renameTo(dst)) {
+          tmp.delete();
+        }
+      }
+      catch (IOException e) {
+        Log.e("FileProvider", "Exception copying from assets", e);
+        tmp.delete();
+      }
+    }
+  }
+
   static private void copy(InputStream in, File dst) throws IOException {
     FileOutputStream out=new FileOutputStream(dst);
-    byte[] buf=new byte[1024];
+
+    try {
+      copy(in, out);
+    }
+    finally {
+      in.close();
+      out.close();
+    }
+  }
+
+  static private void copy(InputStream in, OutputStream out)
+                                                            throws IOException {
+    byte[] buf=new byte[8192];
     int len;
 
     while ((len=in.read(buf)) > 0) {
       out.write(buf, 0, len);
     }
+  }
+
+  static private void closeQuietly(ParcelFileDescriptor pfd) {
+    try {
+      pfd.close();
+    }
+    catch (IOException e) {
+      // nothing useful to do
+    }
+  }
+
+  static private void closeQuietly(ChunkedCipher.Reader reader) {
+    try {
+      reader.close();
+    }
+    catch (IOException e) {
+      // nothing useful to do
+    }
+  }
+
+  /**
+   * Source of generated content, streamed to the client
+   * through a pipe without ever being written to storage.
+   */
+  interface Generator {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private static class PipeWriter implements Runnable {
+    private final Generator generator;
+    private final ParcelFileDescriptor pfd;
+
+    PipeWriter(Generator generator, ParcelFileDescriptor pfd) {
+      this.generator=generator;
+      this.pfd=pfd;
+    }
+
+    @Override
+    public void run() {
+      // the stream does not own the descriptor; pfd is closed
+      // below, with or without an error
+
+      OutputStream out=new FileOutputStream(pfd.getFileDescriptor());
+      IOException failure=null;
+
+      try {
+        generator.writeTo(out);
+        out.flush();
+      }
+      catch (IOException e) {
+        // the reader closed its end early, or the content
+        // could not be generated (e.g., a chunk of an
+        // encrypted file failed authentication)
+        Log.w("FileProvider", "Exception streaming generated content", e);
+        failure=e;
+      }
+
+      if (failure != null
+          && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+        try {
+          pfd.closeWithError(failure.toString());
+        }
+        catch (IOException e) {
+          // nothing useful to do
+        }
+      }
+      else {
+        closeQuietly(pfd);
+      }
+    }
+  }
+
+  /**
+   * Sample generated content: a listing of the files that
+   * this provider serves, one per line, with their sizes.
+   */
+  private class ListingGenerator implements Generator {
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      Writer w=new OutputStreamWriter(out, "UTF-8");
+
+      for (FileIndex.Entry entry : getIndex().list()) {
+        w.write(entry.name);
+        w.write('\t');
+        w.write(String.valueOf(entry.size));
+        w.write('\n');
+      }
+
+      w.flush();
+    }
+  }
+
+  /**
+   * Decrypted content of an encrypted file, from a starting
+   * position to the end.
+   */
+  private static class DecryptingGenerator implements Generator {
+    private final ChunkedCipher.Reader reader;
+    private final long start;
+
+    DecryptingGenerator(ChunkedCipher.Reader reader, long start) {
+      this.reader=reader;
+      this.start=start;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      InputStream in=reader.openStream(start);
+
+      try {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT
+            && reader.length() - start <= MAX_BUFFERED) {
+          ByteArrayOutputStream buffer=new ByteArrayOutputStream();
+
+          copy(in, buffer);
+          buffer.writeTo(out);
+        }
+        else {
+          copy(in, out);
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Decrypted content of an encrypted file, read at random
+   * through a proxy file descriptor. A chunk that fails
+   * authentication is reported to the client as an I/O
+   * error.
+   */
+  private static class DecryptingCallback extends
+      ProxyFileDescriptorCallback {
+    private final ChunkedCipher.Reader reader;
+
+    DecryptingCallback(ChunkedCipher.Reader reader) {
+      this.reader=reader;
+    }
+
+    @Override
+    public long onGetSize() {
+      return(reader.length());
+    }
+
+    @Override
+    public int onRead(long offset, int size, byte[] data)
+                                                         throws ErrnoException {
+      try {
+        int n=reader.read(offset, data, 0, size);
+
+        return(n < 0 ? 0 : n);
+      }
+      catch (IOException e) {
+        Log.w("FileProvider", "Exception decrypting content", e);
+        throw new ErrnoException("onRead", OsConstants.EIO);
+      }
+    }
+
+    @Override
+    public void onRelease() {
+      closeQuietly(reader);
+    }
+  }
+
+  /**
+   * Cursor over FileIndex entries, producing column values
+   * on demand as rows are read (or copied into a
+   * CursorWindow for a client in another process), rather
+   * than building all rows up front.
+   */
+  private static class IndexCursor extends AbstractCursor {
+    private final String[] columns;
+    private final FileIndex.Entry[] entries;
+
+    IndexCursor(String[] columns, FileIndex.Entry[] entries) {
+      this.columns=columns;
+      this.entries=entries;
+    }
 
-    in.close();
-    out.close();
+    @Override
+    public int getCount() {
+      return(entries.length);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+      return(columns);
+    }
+
+    @Override
+    public String getString(int column) {
+      Object value=getValue(column);
+
+      return(value == null ? null : value.toString());
+    }
+
+    @Override
+    public short getShort(int column) {
+      return((short)getLong(column));
+    }
+
+    @Override
+    public int getInt(int column) {
+      return((int)getLong(column));
+    }
+
+    @Override
+    public long getLong(int column) {
+      Object value=getValue(column);
+
+      return(value instanceof Long ? ((Long)value).longValue() : 0);
+    }
+
+    @Override
+    public float getFloat(int column) {
+      return(getLong(column));
+    }
+
+    @Override
+    public double getDouble(int column) {
+      return(getLong(column));
+    }
+
+    @Override
+    public boolean isNull(int column) {
+      return(getValue(column) == null);
+    }
+
+    private Object getValue(int column) {
+      FileIndex.Entry entry=entries[getPosition()];
+      String name=columns[column];
+
+      if (QUERY_RESULT[0].equals(name)) {
+        return(entry.name);
+      }
+      else if (COLUMN_SIZE.equals(name)) {
+        return(entry.size < 0 ? null : Long.valueOf(entry.size));
+      }
+      else if (COLUMN_MIME_TYPE.equals(name)) {
+        return(entry.mimeType);
+      }
+      else if (COLUMN_LAST_MODIFIED.equals(name)) {
+        return(entry.lastModified == 0 ? null
+            : Long.valueOf(entry.lastModified));
+      }
+
+      return(null);
+    }
   }
-}
\ No newline at end of file
+}
@@ -48,14 +48,17 @@ public class SwipeService extends IntentService {
 
   static private void copy(InputStream in, File dst) throws IOException {
     FileOutputStream out=new FileOutputStream(dst);
-    byte[] buf=new byte[1024];
+    byte[] buf=new byte[64 * 1024];
     int len;
 
-    while ((len=in.read(buf)) > 0) {
-      out.write(buf, 0, len);
+    try {
+      while ((len=in.read(buf)) > 0) {
+        out.write(buf, 0, len);
+      }
+    }
+    finally {
+      in.close();
+      out.close();
     }
-
-    in.close();
-    out.close();
   }
 }
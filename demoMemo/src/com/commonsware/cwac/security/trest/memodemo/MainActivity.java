@@ -26,13 +26,9 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 import java.io.InputStream;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
-import javax.net.ssl.TrustManager;
 import com.commonsware.cwac.security.trust.CertificateNotMemorizedException;
 import com.commonsware.cwac.security.trust.MemorizingTrustManager;
 import com.commonsware.cwac.security.trust.TrustManagerBuilder;
@@ -42,7 +38,6 @@ public class MainActivity extends Activity {
   private TextView transcript=null;
   private ScrollView scroll=null;
   private TrustManagerBuilder builder=null;
-  private TrustManager[] managers=null;
   private MenuItem tofu=null;
   private MemorizingTrustManager.Options options=null;
 
@@ -71,7 +66,6 @@ public class MainActivity extends Activity {
                                                                 "foobar2".toCharArray())
                                                     .and()
                                                     .memorize(options);
-      managers=builder.buildArray();
     }
     catch (Exception e) {
       logToTranscript("Exception!");
@@ -154,7 +148,7 @@ public class MainActivity extends Activity {
     @Override
     protected Void doInBackground(Void... params) {
       try {
-        testHURL(managers, host.getText().toString());
+        testHURL(builder, host.getText().toString());
       }
       catch (Exception e) {
         this.e=e;
@@ -186,29 +180,17 @@ public class MainActivity extends Activity {
       }
     }
 
-    private void testHURL(TrustManager[] managers, String url)
-                                                              throws Exception {
-      SSLContext ssl=buildSslContext(managers);
-
+    private void testHURL(TrustManagerBuilder builder, String url)
+                                                                  throws Exception {
       HttpsURLConnection conn=
           (HttpsURLConnection)new URL(url).openConnection();
 
-      conn.setSSLSocketFactory(ssl.getSocketFactory());
+      conn.setSSLSocketFactory(builder.buildSocketFactory());
 
       InputStream in=conn.getInputStream();
 
       in.close();
     }
-
-    private SSLContext buildSslContext(TrustManager[] managers)
-                                                               throws NoSuchAlgorithmException,
-                                                               KeyManagementException {
-      SSLContext ssl=SSLContext.getInstance("TLS");
-
-      ssl.init(null, managers, null);
-
-      return(ssl);
-    }
   }
 
   private class ClearTask extends AsyncTask<Void, Void, Void> {
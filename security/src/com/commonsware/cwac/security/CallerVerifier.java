@@ -0,0 +1,240 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
+import android.os.Binder;
+import android.util.Log;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks IPC callers (e.g., of a ContentProvider or bound
+ * Service) against an allowlist of SHA-256 signing key
+ * digests. The signing key digest of each calling UID is
+ * resolved once, via the UID's packages, and cached, so
+ * repeat checks of the same caller cost a map lookup and a
+ * comparison, with no PackageManager calls. The cached
+ * identity of a UID is dropped when one of its packages is
+ * added, replaced, or removed (UIDs are reused after an
+ * uninstall), as reported by the package broadcasts.
+ *
+ * Call close() when you no longer need the verifier, to
+ * stop listening for package changes.
+ */
+public class CallerVerifier {
+  private static final byte[] UNKNOWN=new byte[0];
+  private final Context ctxt;
+  private final ConcurrentHashMap<Integer, byte[]> identities=
+      new ConcurrentHashMap<Integer, byte[]>();
+  private final PackageReceiver receiver=new PackageReceiver();
+  private volatile byte[][] allowed=new byte[0][];
+  private volatile int generation=0;
+
+  /**
+   * @param ctxt
+   *          any Context; the application Context is
+   *          retained
+   */
+  public CallerVerifier(Context ctxt) {
+    Context app=ctxt.getApplicationContext();
+
+    this.ctxt=(app == null ? ctxt : app);
+
+    IntentFilter filter=new IntentFilter();
+
+    filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+    filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    filter.addDataScheme("package");
+
+    this.ctxt.registerReceiver(receiver, filter);
+  }
+
+  /**
+   * Adds a signing key to the allowlist.
+   *
+   * @param digest
+   *          SHA-256 digest of the signing key
+   * @return the verifier, for chained calls
+   */
+  synchronized public CallerVerifier allow(byte[] digest) {
+    byte[][] result=new byte[allowed.length + 1][];
+
+    System.arraycopy(allowed, 0, result, 0, allowed.length);
+    result[allowed.length]=digest.clone();
+    allowed=result;
+
+    return(this);
+  }
+
+  /**
+   * Adds a signing key to the allowlist.
+   *
+   * @param digest
+   *          SHA-256 digest of the signing key, as a hex
+   *          string, with or without colons
+   * @return the verifier, for chained calls
+   */
+  public CallerVerifier allow(String digest) {
+    return(allow(SignatureUtils.fromHexString(digest)));
+  }
+
+  /**
+   * Adds a package's current signing key to the allowlist
+   * (e.g., your own package, to allow your other apps
+   * signed by the same key).
+   *
+   * @return the verifier, for chained calls
+   */
+  public CallerVerifier allowSignerOf(String packageName)
+                                                         throws NameNotFoundException,
+                                                         NoSuchAlgorithmException {
+    return(allow(SignatureCache.getDigest(ctxt, packageName)));
+  }
+
+  /**
+   * Stops listening for package changes. Identities are no
+   * longer cached after this point.
+   */
+  public void close() {
+    ctxt.unregisterReceiver(receiver);
+    generation++;
+    identities.clear();
+  }
+
+  /**
+   * @return true if the app making the current IPC call is
+   *         signed by an allowed key, false otherwise; call
+   *         this on the binder thread servicing the call
+   */
+  public boolean isCallerAllowed() {
+    return(isAllowed(Binder.getCallingUid()));
+  }
+
+  /**
+   * Same as isCallerAllowed(), but throws if the caller is
+   * not allowed.
+   *
+   * @throws SecurityException
+   *           if the caller is not signed by an allowed key
+   */
+  public void enforceCallerAllowed() {
+    int uid=Binder.getCallingUid();
+
+    if (!isAllowed(uid)) {
+      throw new SecurityException("Caller with UID " + uid
+          + " is not signed by an allowed key");
+    }
+  }
+
+  /**
+   * @return true if the packages running as this UID are
+   *         signed by an allowed key, false otherwise
+   */
+  public boolean isAllowed(int uid) {
+    byte[] digest=lookup(uid);
+
+    if (digest != UNKNOWN) {
+      for (byte[] candidate : allowed) {
+        if (SignatureUtils.isEqual(candidate, digest)) {
+          return(true);
+        }
+      }
+    }
+
+    return(false);
+  }
+
+  /**
+   * @return the SHA-256 digest of the signing key of the
+   *         packages running as this UID, or null if there
+   *         are none
+   */
+  public byte[] getDigest(int uid) {
+    byte[] digest=lookup(uid);
+
+    return(digest == UNKNOWN ? null : digest.clone());
+  }
+
+  private byte[] lookup(int uid) {
+    byte[] result=identities.get(uid);
+
+    if (result == null) {
+      // a package change during resolve() bumps generation,
+      // and we then skip caching what may be a stale answer
+
+      int current=generation;
+
+      result=resolve(uid);
+
+      if (current == generation) {
+        identities.put(uid, result);
+      }
+    }
+
+    return(result);
+  }
+
+  private byte[] resolve(int uid) {
+    String[] pkgs=ctxt.getPackageManager().getPackagesForUid(uid);
+
+    if (pkgs != null && pkgs.length > 0) {
+      // packages sharing a UID must share a signing key, so
+      // the first one speaks for all
+
+      try {
+        return(SignatureCache.lookup(ctxt, pkgs[0]));
+      }
+      catch (NameNotFoundException e) {
+        // uninstalled since getPackagesForUid()
+      }
+      catch (NoSuchAlgorithmException e) {
+        Log.e("CallerVerifier", "Exception resolving signature", e);
+      }
+    }
+
+    return(UNKNOWN);
+  }
+
+  private class PackageReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context ctxt, Intent intent) {
+      Uri data=intent.getData();
+      int uid=intent.getIntExtra(Intent.EXTRA_UID, -1);
+
+      // SignatureCache may not have seen this broadcast yet,
+      // and we do not want to re-cache its stale digest
+
+      if (data != null) {
+        SignatureCache.invalidate(data.getSchemeSpecificPart());
+      }
+
+      generation++;
+
+      if (uid == -1) {
+        identities.clear();
+      }
+      else {
+        identities.remove(uid);
+      }
+    }
+  }
+}
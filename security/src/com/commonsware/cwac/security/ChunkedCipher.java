@@ -0,0 +1,520 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts files in a chunked format that supports random
+ * access: a reader can decrypt (and authenticate) just the
+ * chunks covering the bytes it wants, rather than the whole
+ * file.
+ *
+ * The file starts with a header (magic number, version,
+ * chunk size, and a random nonce), followed by the chunks.
+ * Each chunk is encrypted with AES/CTR, using a counter
+ * that starts at the chunk's offset, and is followed by an
+ * HMAC-SHA256 tag covering the header values, the chunk
+ * index, whether it is the final chunk, and the ciphertext.
+ * Hence, chunks cannot be altered, reordered, or moved
+ * between files, and truncating the file is detected
+ * because the new last chunk is not flagged as final.
+ *
+ * The AES and HMAC keys are derived from the key supplied
+ * to the constructor. Keeping that key safe is up to you.
+ */
+public class ChunkedCipher {
+  public static final int DEFAULT_CHUNK_SIZE=64 * 1024;
+  public static final int MAX_CHUNK_SIZE=1024 * 1024;
+  private static final int MAGIC=0x43575343; // "CWSC"
+  private static final int VERSION=1;
+  private static final int NONCE_LENGTH=8;
+  private static final int HEADER_LENGTH=4 + 1 + 4 + NONCE_LENGTH;
+  private static final int TAG_LENGTH=32;
+  private static final int AES_BLOCK=16;
+  private static final String HMAC="HmacSHA256";
+  private static final String CTR="AES/CTR/NoPadding";
+
+  private final SecretKeySpec encKey;
+  private final SecretKeySpec macKey;
+  private final int chunkSize;
+
+  /**
+   * @param key
+   *          16 or 32 bytes of key material
+   */
+  public ChunkedCipher(byte[] key) throws GeneralSecurityException {
+    this(key, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param key
+   *          16 or 32 bytes of key material
+   * @param chunkSize
+   *          plaintext bytes per chunk, when encrypting (a
+   *          multiple of 16, up to MAX_CHUNK_SIZE); files
+   *          record their own chunk size, so this does not
+   *          affect decryption
+   */
+  public ChunkedCipher(byte[] key, int chunkSize)
+                                                 throws GeneralSecurityException {
+    if (key.length != 16 && key.length != 32) {
+      throw new IllegalArgumentException("Key must be 16 or 32 bytes");
+    }
+
+    if (!isValidChunkSize(chunkSize)) {
+      throw new IllegalArgumentException(
+                                         "Chunk size must be a positive multiple of 16, up to 1 MB");
+    }
+
+    SecretKeySpec master=new SecretKeySpec(key, HMAC);
+    Mac mac=Mac.getInstance(HMAC);
+
+    mac.init(master);
+
+    byte[] derived=mac.doFinal(ascii("cwac-chunked-enc"));
+
+    encKey=new SecretKeySpec(derived, 0, key.length, "AES");
+    macKey=new SecretKeySpec(mac.doFinal(ascii("cwac-chunked-mac")),
+                             HMAC);
+    this.chunkSize=chunkSize;
+  }
+
+  /**
+   * Encrypts the stream into the file, replacing any
+   * existing contents. The stream is closed when done.
+   */
+  public void encrypt(InputStream in, File dst) throws IOException,
+                                               GeneralSecurityException {
+    OutputStream out=new FileOutputStream(dst);
+
+    try {
+      encrypt(in, out);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Encrypts the input stream into the output stream. The
+   * input stream is closed when done; the output stream is
+   * not.
+   */
+  public void encrypt(InputStream in, OutputStream out)
+                                                       throws IOException,
+                                                       GeneralSecurityException {
+    byte[] nonce=new byte[NONCE_LENGTH];
+
+    new SecureRandom().nextBytes(nonce);
+
+    Header header=new Header(chunkSize, nonce);
+    Cipher cipher=Cipher.getInstance(CTR);
+    Mac mac=Mac.getInstance(HMAC);
+    byte[] current=new byte[chunkSize];
+    byte[] next=new byte[chunkSize];
+
+    mac.init(macKey);
+    out.write(header.toBytes());
+
+    try {
+      int currentLength=readFully(in, current);
+      long index=0;
+
+      while (true) {
+        int nextLength=
+            (currentLength == chunkSize ? readFully(in, next) : 0);
+        boolean last=(nextLength == 0);
+
+        cipher.init(Cipher.ENCRYPT_MODE, encKey, header.iv(index));
+
+        byte[] ciphertext=cipher.doFinal(current, 0, currentLength);
+
+        out.write(ciphertext);
+        out.write(header.tag(mac, index, last, ciphertext,
+                             ciphertext.length));
+
+        if (last) {
+          break;
+        }
+
+        byte[] swap=current;
+
+        current=next;
+        next=swap;
+        currentLength=nextLength;
+        index++;
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Opens an encrypted file for random-access reads.
+   */
+  public Reader open(File src) throws IOException,
+                              GeneralSecurityException {
+    return(new Reader(src));
+  }
+
+  /**
+   * Calculates the length of the decrypted content from the
+   * file's header and length, without the key (e.g., for
+   * the size of the file in a listing). Nothing is
+   * authenticated, so the result is only as trustworthy as
+   * the file; reads through a Reader are still checked.
+   *
+   * @return the length of the decrypted content
+   * @throws IOException
+   *           if the file is not a valid encrypted file
+   */
+  public static long getLength(File src) throws IOException {
+    RandomAccessFile file=new RandomAccessFile(src, "r");
+
+    try {
+      return(getLength(src, readHeader(file), file.length()));
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  private static Header readHeader(RandomAccessFile file)
+                                                         throws IOException {
+    byte[] raw=new byte[HEADER_LENGTH];
+
+    file.readFully(raw);
+
+    return(Header.fromBytes(raw));
+  }
+
+  private static long getLength(File src, Header header, long fileLength)
+                                                                        throws IOException {
+    long body=fileLength - HEADER_LENGTH;
+    long stride=header.chunkSize + TAG_LENGTH;
+    long chunkCount=(body + stride - 1) / stride;
+    long lastLength=body - (chunkCount - 1) * stride - TAG_LENGTH;
+
+    if (chunkCount < 1 || lastLength < 0
+        || (lastLength == 0 && chunkCount > 1)) {
+      throw new IOException("Truncated or corrupt file: " + src);
+    }
+
+    return((chunkCount - 1) * header.chunkSize + lastLength);
+  }
+
+  private static boolean isValidChunkSize(int chunkSize) {
+    return(chunkSize > 0 && chunkSize <= MAX_CHUNK_SIZE
+        && chunkSize % AES_BLOCK == 0);
+  }
+
+  private static byte[] ascii(String s) {
+    byte[] result=new byte[s.length()];
+
+    for (int i=0; i < result.length; i++) {
+      result[i]=(byte)s.charAt(i);
+    }
+
+    return(result);
+  }
+
+  private static int readFully(InputStream in, byte[] buf)
+                                                          throws IOException {
+    int total=0;
+
+    while (total < buf.length) {
+      int len=in.read(buf, total, buf.length - total);
+
+      if (len < 0) {
+        break;
+      }
+
+      total+=len;
+    }
+
+    return(total);
+  }
+
+  /**
+   * Random-access reader of an encrypted file. Each read
+   * decrypts and authenticates only the chunks that it
+   * touches; the most recently used chunk is kept, so
+   * sequential reads decrypt each chunk once. Not
+   * thread-safe.
+   */
+  public class Reader implements Closeable {
+    private final RandomAccessFile file;
+    private final Header header;
+    private final long chunkCount;
+    private final long length;
+    private final Cipher cipher;
+    private final Mac mac;
+    private final byte[] ciphertext;
+    private final byte[] tag=new byte[TAG_LENGTH];
+    private byte[] plaintext=null;
+    private long plaintextIndex=-1;
+
+    Reader(File src) throws IOException, GeneralSecurityException {
+      file=new RandomAccessFile(src, "r");
+
+      try {
+        header=readHeader(file);
+        length=getLength(src, header, file.length());
+
+        // an empty file still has one (empty) chunk
+
+        chunkCount=
+            Math.max(1, (length + header.chunkSize - 1) / header.chunkSize);
+        cipher=Cipher.getInstance(CTR);
+        mac=Mac.getInstance(HMAC);
+        mac.init(macKey);
+        ciphertext=new byte[header.chunkSize];
+      }
+      catch (IOException e) {
+        file.close();
+        throw e;
+      }
+      catch (GeneralSecurityException e) {
+        file.close();
+        throw e;
+      }
+    }
+
+    /**
+     * @return the length of the decrypted content
+     */
+    public long length() {
+      return(length);
+    }
+
+    /**
+     * Reads decrypted bytes starting at the given position.
+     *
+     * @return the number of bytes read, or -1 if position is
+     *         at or past the end
+     * @throws IOException
+     *           if a chunk fails authentication, among other
+     *           things
+     */
+    public int read(long position, byte[] buf, int offset, int count)
+                                                                   throws IOException {
+      if (position >= length) {
+        return(-1);
+      }
+
+      int total=0;
+
+      while (count > 0 && position < length) {
+        long index=position / header.chunkSize;
+        int within=(int)(position % header.chunkSize);
+        byte[] chunk=loadChunk(index);
+        int n=Math.min(count, chunk.length - within);
+
+        System.arraycopy(chunk, within, buf, offset, n);
+        position+=n;
+        offset+=n;
+        count-=n;
+        total+=n;
+      }
+
+      return(total);
+    }
+
+    /**
+     * @return an InputStream of the decrypted content,
+     *         starting at the given position, that reads
+     *         through this Reader (and closes it when
+     *         closed)
+     */
+    public InputStream openStream(final long start) {
+      return(new InputStream() {
+        private long position=start;
+
+        @Override
+        public int read() throws IOException {
+          byte[] one=new byte[1];
+
+          return(read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int count)
+                                                          throws IOException {
+          int n=Reader.this.read(position, buf, offset, count);
+
+          if (n > 0) {
+            position+=n;
+          }
+
+          return(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+          Reader.this.close();
+        }
+      });
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+
+    private byte[] loadChunk(long index) throws IOException {
+      if (index != plaintextIndex) {
+        boolean last=(index == chunkCount - 1);
+        int chunkLength=
+            (int)(last ? length - index * header.chunkSize
+                : header.chunkSize);
+
+        file.seek(HEADER_LENGTH + index * (header.chunkSize + TAG_LENGTH));
+        file.readFully(ciphertext, 0, chunkLength);
+        file.readFully(tag);
+
+        try {
+          byte[] expected=
+              header.tag(mac, index, last, ciphertext, chunkLength);
+
+          if (!SignatureUtils.isEqual(expected, tag)) {
+            throw new IOException("Chunk " + index
+                + " failed authentication");
+          }
+
+          cipher.init(Cipher.DECRYPT_MODE, encKey, header.iv(index));
+          plaintext=cipher.doFinal(ciphertext, 0, chunkLength);
+          plaintextIndex=index;
+        }
+        catch (GeneralSecurityException e) {
+          IOException ioe=
+              new IOException("Exception decrypting chunk " + index);
+
+          ioe.initCause(e); // IOException(String, Throwable) is API 9
+          throw ioe;
+        }
+      }
+
+      return(plaintext);
+    }
+  }
+
+  private static class Header {
+    final int chunkSize;
+    final byte[] nonce;
+
+    Header(int chunkSize, byte[] nonce) {
+      this.chunkSize=chunkSize;
+      this.nonce=nonce;
+    }
+
+    static Header fromBytes(byte[] raw) throws IOException {
+      if (readInt(raw, 0) != MAGIC) {
+        throw new IOException("Not a chunked cipher file");
+      }
+
+      if (raw[4] != VERSION) {
+        throw new IOException("Unsupported version: " + raw[4]);
+      }
+
+      int chunkSize=readInt(raw, 5);
+
+      // the header is not authenticated until the first chunk
+      // is read, and readers allocate a chunk-sized buffer
+
+      if (!isValidChunkSize(chunkSize)) {
+        throw new IOException("Invalid chunk size: " + chunkSize);
+      }
+
+      byte[] nonce=new byte[NONCE_LENGTH];
+
+      System.arraycopy(raw, 9, nonce, 0, NONCE_LENGTH);
+
+      return(new Header(chunkSize, nonce));
+    }
+
+    byte[] toBytes() {
+      byte[] raw=new byte[HEADER_LENGTH];
+
+      writeInt(raw, 0, MAGIC);
+      raw[4]=VERSION;
+      writeInt(raw, 5, chunkSize);
+      System.arraycopy(nonce, 0, raw, 9, NONCE_LENGTH);
+
+      return(raw);
+    }
+
+    // the CTR counter is the nonce followed by the index of
+    // the chunk's first AES block, so counters never repeat
+    // across chunks
+
+    IvParameterSpec iv(long index) {
+      byte[] iv=new byte[AES_BLOCK];
+      long block=index * (chunkSize / AES_BLOCK);
+
+      System.arraycopy(nonce, 0, iv, 0, NONCE_LENGTH);
+
+      for (int i=0; i < 8; i++) {
+        iv[AES_BLOCK - 1 - i]=(byte)(block >>> (8 * i));
+      }
+
+      return(new IvParameterSpec(iv));
+    }
+
+    byte[] tag(Mac mac, long index, boolean last, byte[] ciphertext,
+               int length) {
+      byte[] meta=new byte[HEADER_LENGTH + 8 + 1];
+
+      System.arraycopy(toBytes(), 0, meta, 0, HEADER_LENGTH);
+
+      for (int i=0; i < 8; i++) {
+        meta[HEADER_LENGTH + i]=(byte)(index >>> (56 - 8 * i));
+      }
+
+      meta[HEADER_LENGTH + 8]=(byte)(last ? 1 : 0);
+      mac.update(meta);
+      mac.update(ciphertext, 0, length);
+
+      return(mac.doFinal());
+    }
+
+    private static int readInt(byte[] raw, int offset) {
+      return(((raw[offset] & 0xFF) << 24)
+          | ((raw[offset + 1] & 0xFF) << 16)
+          | ((raw[offset + 2] & 0xFF) << 8) | (raw[offset + 3] & 0xFF));
+    }
+
+    private static void writeInt(byte[] raw, int offset, int value) {
+      raw[offset]=(byte)(value >>> 24);
+      raw[offset + 1]=(byte)(value >>> 16);
+      raw[offset + 2]=(byte)(value >>> 8);
+      raw[offset + 3]=(byte)value;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Copies content into files through NIO channels and a
+ * large direct buffer, computing the SHA-256 digest of the
+ * content in the same pass. If you supply an expected
+ * digest, the copy is verified against it before the
+ * destination file is replaced.
+ *
+ * Content is written to a temporary file next to the
+ * destination and renamed into place only once it is
+ * complete (and verified), so the destination never holds
+ * partial or unverified content.
+ */
+public class CopyUtils {
+  private static final String SHA256="SHA-256";
+  private static final int BUFFER_SIZE=256 * 1024;
+
+  /**
+   * Copies the content identified by the Uri, as served by
+   * the provider's openAssetFile() (or openFile()).
+   *
+   * @param cr
+   *          a ContentResolver
+   * @param src
+   *          the content to copy
+   * @param dst
+   *          where to copy it
+   * @param expectedDigest
+   *          SHA-256 digest that the content must match, or
+   *          null to skip verification
+   * @return the SHA-256 digest of the content
+   * @throws DigestMismatchException
+   *           if the content does not match expectedDigest,
+   *           in which case dst is left untouched
+   */
+  public static byte[] copy(ContentResolver cr, Uri src, File dst,
+                            byte[] expectedDigest) throws IOException {
+    AssetFileDescriptor afd=cr.openAssetFileDescriptor(src, "r");
+
+    if (afd == null) {
+      throw new FileNotFoundException(src.toString());
+    }
+
+    try {
+      FileChannel in=
+          new FileInputStream(afd.getFileDescriptor()).getChannel();
+
+      // an asset may be a slice of a larger file (e.g., an
+      // uncompressed asset within an APK); otherwise, this
+      // may well be a pipe, which cannot be positioned, and
+      // whose length is UNKNOWN_LENGTH (-1)
+
+      if (afd.getStartOffset() > 0) {
+        in.position(afd.getStartOffset());
+      }
+
+      return(copy(in, afd.getLength(), dst, expectedDigest));
+    }
+    finally {
+      afd.close();
+    }
+  }
+
+  /**
+   * Copies from the current position of the file
+   * descriptor to its end. The descriptor is not closed.
+   *
+   * @return the SHA-256 digest of the content
+   * @throws DigestMismatchException
+   *           if the content does not match expectedDigest
+   *           (if not null), in which case dst is left
+   *           untouched
+   */
+  public static byte[] copy(ParcelFileDescriptor src, File dst,
+                            byte[] expectedDigest) throws IOException {
+    FileChannel in=
+        new FileInputStream(src.getFileDescriptor()).getChannel();
+
+    return(copy(in, -1, dst, expectedDigest));
+  }
+
+  /**
+   * Copies the stream to its end. The stream is closed when
+   * done.
+   *
+   * @return the SHA-256 digest of the content
+   * @throws DigestMismatchException
+   *           if the content does not match expectedDigest
+   *           (if not null), in which case dst is left
+   *           untouched
+   */
+  public static byte[] copy(InputStream src, File dst,
+                            byte[] expectedDigest) throws IOException {
+    try {
+      ReadableByteChannel in;
+
+      if (src instanceof FileInputStream) {
+        in=((FileInputStream)src).getChannel();
+      }
+      else {
+        in=Channels.newChannel(src);
+      }
+
+      return(copy(in, -1, dst, expectedDigest));
+    }
+    finally {
+      src.close();
+    }
+  }
+
+  // length is -1 to copy until end of input
+
+  private static byte[] copy(ReadableByteChannel in, long length,
+                             File dst, byte[] expectedDigest)
+                                                             throws IOException {
+    MessageDigest md;
+
+    try {
+      md=MessageDigest.getInstance(SHA256);
+    }
+    catch (NoSuchAlgorithmException e) {
+      IllegalStateException ise=
+          new IllegalStateException("SHA-256 is not available");
+
+      ise.initCause(e); // IllegalStateException(String, Throwable) is API 9
+      throw ise;
+    }
+
+    // each copy gets its own temporary file, so concurrent
+    // copies to the same destination do not collide
+
+    File tmp=
+        File.createTempFile("." + dst.getName() + "-", ".tmp",
+                            dst.getAbsoluteFile().getParentFile());
+    FileOutputStream fos=new FileOutputStream(tmp);
+    boolean success=false;
+
+    try {
+      FileChannel out=fos.getChannel();
+      ByteBuffer buf=ByteBuffer.allocateDirect(BUFFER_SIZE);
+      long remaining=(length < 0 ? Long.MAX_VALUE : length);
+
+      while (remaining > 0) {
+        if (remaining < buf.capacity()) {
+          buf.limit((int)remaining);
+        }
+
+        int len=in.read(buf);
+
+        if (len < 0) {
+          break;
+        }
+
+        remaining-=len;
+        buf.flip();
+        md.update(buf);
+        buf.rewind();
+
+        while (buf.hasRemaining()) {
+          out.write(buf);
+        }
+
+        buf.clear();
+      }
+
+      if (length >= 0 && remaining > 0) {
+        throw new IOException("Content ended " + remaining
+            + " bytes early");
+      }
+
+      fos.close();
+
+      byte[] digest=md.digest();
+
+      if (expectedDigest != null
+          && !SignatureUtils.isEqual(expectedDigest, digest)) {
+        throw new DigestMismatchException(expectedDigest, digest);
+      }
+
+      if (!tmp.renameTo(dst)) {
+        throw new IOException("Could not rename " + tmp + " to " + dst);
+      }
+
+      success=true;
+
+      return(digest);
+    }
+    finally {
+      if (!success) {
+        fos.close();
+        tmp.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import java.io.IOException;
+
+public class DigestMismatchException extends IOException {
+  /**
+   * a value courtesy of an Eclipse generator...
+   */
+  private static final long serialVersionUID=5212436390125870941L;
+  byte[] expected=null;
+  byte[] actual=null;
+
+  public DigestMismatchException(byte[] expected, byte[] actual) {
+    super("Expected SHA-256 "
+        + SignatureUtils.toHexStringWithColons(expected) + " but got "
+        + SignatureUtils.toHexStringWithColons(actual));
+
+    this.expected=expected;
+    this.actual=actual;
+  }
+
+  public byte[] getExpectedDigest() {
+    return(expected);
+  }
+
+  public byte[] getActualDigest() {
+    return(actual);
+  }
+}
@@ -0,0 +1,286 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Enumerates installed packages without asking the
+ * PackageManager to marshal details of every package in
+ * one giant getInstalledPackages() call. The package names
+ * are listed first (with no flags, so the call is small),
+ * and then the PackageInfo for each package is retrieved
+ * with the requested flags, a page at a time. Only a
+ * bounded number of pages is held in memory (or being
+ * retrieved, if you supply an Executor) at any point.
+ *
+ * Packages that are uninstalled while the enumeration is
+ * underway are skipped.
+ */
+public class PackagePager implements Iterable<PackageInfo> {
+  public static final int DEFAULT_PAGE_SIZE=32;
+
+  private final PackageManager mgr;
+  private final int flags;
+  private final Collection<String> packageNames;
+  private int pageSize=DEFAULT_PAGE_SIZE;
+  private Executor executor=null;
+  private int pagesInFlight=1;
+
+  /**
+   * Enumerates all installed packages.
+   *
+   * @param mgr
+   *          a PackageManager
+   * @param flags
+   *          the flags to use when retrieving each
+   *          PackageInfo (e.g., GET_PERMISSIONS)
+   */
+  public PackagePager(PackageManager mgr, int flags) {
+    this(mgr, flags, null);
+  }
+
+  /**
+   * Enumerates the named packages.
+   *
+   * @param mgr
+   *          a PackageManager
+   * @param flags
+   *          the flags to use when retrieving each
+   *          PackageInfo (e.g., GET_PERMISSIONS)
+   * @param packageNames
+   *          the packages of interest, or null for all
+   *          installed packages
+   */
+  public PackagePager(PackageManager mgr, int flags,
+                      Collection<String> packageNames) {
+    this.mgr=mgr;
+    this.flags=flags;
+    this.packageNames=packageNames;
+  }
+
+  /**
+   * @param pageSize
+   *          number of packages to retrieve per page
+   * @return the pager, for chained calls
+   */
+  public PackagePager pageSize(int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("Page size must be positive");
+    }
+
+    this.pageSize=pageSize;
+
+    return(this);
+  }
+
+  /**
+   * Retrieves pages on the supplied Executor, keeping up to
+   * pagesInFlight pages retrieved or being retrieved ahead
+   * of the one being iterated over. Without this, pages are
+   * retrieved on the iterating thread, one at a time.
+   *
+   * @param executor
+   *          where to retrieve pages
+   * @param pagesInFlight
+   *          maximum number of pages to retrieve ahead
+   * @return the pager, for chained calls
+   */
+  public PackagePager prefetch(Executor executor, int pagesInFlight) {
+    if (pagesInFlight < 1) {
+      throw new IllegalArgumentException(
+                                         "Pages in flight must be positive");
+    }
+
+    this.executor=executor;
+    this.pagesInFlight=pagesInFlight;
+
+    return(this);
+  }
+
+  /**
+   * Lists all installed packages with no flags, which is a
+   * small call: each PackageInfo has little more than the
+   * package name, version, and install and update times.
+   * Use this to decide which packages need a closer look,
+   * then retrieve just those through a PackagePager.
+   *
+   * @param mgr
+   *          a PackageManager
+   * @return the installed packages, without details
+   */
+  public static List<PackageInfo> listInstalledPackages(PackageManager mgr) {
+    return(mgr.getInstalledPackages(0));
+  }
+
+  /**
+   * @return the names of the packages to enumerate
+   */
+  public List<String> getPackageNames() {
+    ArrayList<String> result;
+
+    if (packageNames == null) {
+      List<PackageInfo> pkgs=listInstalledPackages(mgr);
+
+      result=new ArrayList<String>(pkgs.size());
+
+      for (PackageInfo pkg : pkgs) {
+        result.add(pkg.packageName);
+      }
+    }
+    else {
+      result=new ArrayList<String>(packageNames);
+    }
+
+    return(result);
+  }
+
+  /**
+   * Retrieves the PackageInfo for each of the named
+   * packages, on the calling thread.
+   *
+   * @param names
+   *          the packages to retrieve
+   * @return the PackageInfo objects, omitting any packages
+   *         that are not installed
+   */
+  public ArrayList<PackageInfo> getPage(List<String> names) {
+    ArrayList<PackageInfo> result=new ArrayList<PackageInfo>(names.size());
+
+    for (String name : names) {
+      try {
+        result.add(mgr.getPackageInfo(name, flags));
+      }
+      catch (NameNotFoundException e) {
+        // uninstalled since we listed it, so skip it
+      }
+    }
+
+    return(result);
+  }
+
+  @Override
+  public Iterator<PackageInfo> iterator() {
+    return(new PageIterator(getPackageNames()));
+  }
+
+  private class PageIterator implements Iterator<PackageInfo> {
+    private final List<String> names;
+    private final LinkedList<FutureTask<ArrayList<PackageInfo>>> pages=
+        new LinkedList<FutureTask<ArrayList<PackageInfo>>>();
+    private int nextName=0;
+    private Iterator<PackageInfo> current=null;
+
+    PageIterator(List<String> names) {
+      this.names=names;
+      fill();
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (current == null || !current.hasNext()) {
+        FutureTask<ArrayList<PackageInfo>> page=pages.poll();
+
+        if (page == null) {
+          return(false);
+        }
+
+        fill();
+
+        if (executor == null) {
+          page.run();
+        }
+
+        current=await(page).iterator();
+      }
+
+      return(true);
+    }
+
+    @Override
+    public PackageInfo next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      return(current.next());
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void fill() {
+      while (pages.size() < pagesInFlight && nextName < names.size()) {
+        int end=Math.min(nextName + pageSize, names.size());
+        PageFetcher fetcher=new PageFetcher(names.subList(nextName, end));
+        FutureTask<ArrayList<PackageInfo>> page=
+            new FutureTask<ArrayList<PackageInfo>>(fetcher);
+
+        pages.add(page);
+        nextName=end;
+
+        if (executor != null) {
+          executor.execute(page);
+        }
+      }
+    }
+
+    private ArrayList<PackageInfo> await(FutureTask<ArrayList<PackageInfo>> page) {
+      try {
+        return(page.get());
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+
+        IllegalStateException ise=
+            new IllegalStateException("Interrupted while retrieving packages");
+
+        ise.initCause(e); // IllegalStateException(String, Throwable) is API 9
+        throw ise;
+      }
+      catch (ExecutionException e) {
+        throw new RuntimeException("Exception retrieving packages",
+                                   e.getCause());
+      }
+    }
+  }
+
+  private class PageFetcher implements Callable<ArrayList<PackageInfo>> {
+    private final List<String> names;
+
+    PageFetcher(List<String> names) {
+      this.names=names;
+    }
+
+    @Override
+    public ArrayList<PackageInfo> call() {
+      return(getPage(names));
+    }
+  }
+}
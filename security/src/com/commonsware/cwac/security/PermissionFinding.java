@@ -0,0 +1,87 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+/**
+ * Compact form of a PermissionLint: just the names of the
+ * package and permission, plus the lint results as bit
+ * flags. Unlike PermissionLint, this holds no references
+ * to PackageInfo or PermissionInfo objects.
+ */
+public class PermissionFinding {
+  public static final int FLAG_DOWNGRADED=0x01;
+  public static final int FLAG_UPGRADED=0x02;
+  public static final int FLAG_PROSE_DIFFERS=0x04;
+  public static final int FLAG_SIGNATURES_DIFFER=0x08;
+
+  public final String packageName;
+  public final String permissionName;
+  public final int flags;
+
+  public PermissionFinding(String packageName, String permissionName,
+                           int flags) {
+    this.packageName=packageName;
+    this.permissionName=permissionName;
+    this.flags=flags;
+  }
+
+  PermissionFinding(String packageName, PermissionLint lint) {
+    this(packageName, lint.perm.name, toFlags(lint));
+  }
+
+  public boolean wasDowngraded() {
+    return((flags & FLAG_DOWNGRADED) != 0);
+  }
+
+  public boolean wasUpgraded() {
+    return((flags & FLAG_UPGRADED) != 0);
+  }
+
+  public boolean proseDiffers() {
+    return((flags & FLAG_PROSE_DIFFERS) != 0);
+  }
+
+  public boolean signaturesDiffer() {
+    return((flags & FLAG_SIGNATURES_DIFFER) != 0);
+  }
+
+  @Override
+  public String toString() {
+    return(packageName + "/" + permissionName + "#"
+        + Integer.toHexString(flags));
+  }
+
+  static int toFlags(PermissionLint lint) {
+    int result=0;
+
+    if (lint.wasDowngraded) {
+      result|=FLAG_DOWNGRADED;
+    }
+
+    if (lint.wasUpgraded) {
+      result|=FLAG_UPGRADED;
+    }
+
+    if (lint.proseDiffers) {
+      result|=FLAG_PROSE_DIFFERS;
+    }
+
+    if (lint.signaturesDiffer) {
+      result|=FLAG_SIGNATURES_DIFFER;
+    }
+
+    return(result);
+  }
+}
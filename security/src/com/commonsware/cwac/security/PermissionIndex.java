@@ -0,0 +1,439 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PermissionInfo;
+import android.net.Uri;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Device-wide index of permissions: which package defines
+ * each permission, at what protection level, and which
+ * packages request it. The index is built once, by
+ * scanning all installed packages, and then kept up to date
+ * as packages are added, replaced, changed, or removed, so
+ * each query is a hash lookup.
+ *
+ * If several packages declare the same permission, only
+ * one of them owns it, and that is not necessarily the one
+ * that was installed first. In that case, the index asks
+ * the PackageManager which package the permission belongs
+ * to, and getDefiningPackages() reports all of the packages
+ * that declare it.
+ *
+ * Building the index performs a full scan of installed
+ * packages, so create it on a background thread. Package
+ * changes are applied on a background thread of the
+ * index's own. Call close() when you no longer need it, to
+ * stop listening for package changes and stop that thread.
+ */
+public class PermissionIndex {
+  private final Context ctxt;
+  private final PackageManager mgr;
+  private final HashMap<String, Definition> owners=
+      new HashMap<String, Definition>();
+  private final HashMap<String, HashMap<String, Integer>> definers=
+      new HashMap<String, HashMap<String, Integer>>();
+  private final HashMap<String, HashSet<String>> requesters=
+      new HashMap<String, HashSet<String>>();
+  private final HashMap<String, PackageRecord> packages=
+      new HashMap<String, PackageRecord>();
+  private final PackageReceiver receiver=new PackageReceiver();
+  private final ExecutorService refresher=
+      Executors.newSingleThreadExecutor();
+  private HashSet<String> refreshedDuringScan=new HashSet<String>();
+
+  /**
+   * Builds the index and starts listening for package
+   * changes.
+   *
+   * @param ctxt
+   *          any Context; the application Context is
+   *          retained
+   */
+  public PermissionIndex(Context ctxt) {
+    Context app=ctxt.getApplicationContext();
+
+    this.ctxt=(app == null ? ctxt : app);
+    mgr=this.ctxt.getPackageManager();
+
+    IntentFilter filter=new IntentFilter();
+
+    filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+    filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+    filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    filter.addDataScheme("package");
+
+    // register first, so we miss no changes made during the
+    // initial scan; a page of the scan may have been
+    // retrieved before such a change, so we skip packages
+    // that a refresh has already written
+
+    this.ctxt.registerReceiver(receiver, filter);
+
+    HashSet<String> changed=new HashSet<String>();
+
+    for (PackageInfo pkg : new PackagePager(mgr,
+                                            PackageManager.GET_PERMISSIONS)) {
+      synchronized(this) {
+        if (!refreshedDuringScan.contains(pkg.packageName)) {
+          changed.addAll(add(pkg));
+        }
+      }
+    }
+
+    synchronized(this) {
+      refreshedDuringScan=null;
+    }
+
+    resolve(changed);
+  }
+
+  /**
+   * Stops listening for package changes. The index remains
+   * usable, but will no longer be updated.
+   */
+  public void close() {
+    ctxt.unregisterReceiver(receiver);
+    refresher.shutdown();
+  }
+
+  /**
+   * @param permission
+   *          a permission name
+   * @return the package that owns this permission, or null
+   *         if no installed package defines it (or, briefly,
+   *         while a conflict between several packages
+   *         declaring it is being resolved)
+   */
+  synchronized public String getDefiningPackage(String permission) {
+    Definition def=owners.get(permission);
+
+    return(def == null ? null : def.packageName);
+  }
+
+  /**
+   * @param permission
+   *          a permission name
+   * @return every installed package that declares this
+   *         permission in its manifest (empty if none); more
+   *         than one means that some package tried to
+   *         define a permission that another already does
+   */
+  synchronized public Set<String> getDefiningPackages(String permission) {
+    HashMap<String, Integer> result=definers.get(permission);
+
+    if (result == null) {
+      return(Collections.<String> emptySet());
+    }
+
+    return(new HashSet<String>(result.keySet()));
+  }
+
+  /**
+   * @param permission
+   *          a permission name
+   * @return the protection level of the permission, as
+   *         declared by the owning package, or -1 if no
+   *         installed package defines it
+   */
+  synchronized public int getProtectionLevel(String permission) {
+    Definition def=owners.get(permission);
+
+    return(def == null ? -1 : def.protectionLevel);
+  }
+
+  /**
+   * @param permission
+   *          a permission name
+   * @return the packages that request this permission via
+   *         a uses-permission element (empty if none)
+   */
+  synchronized public Set<String> getRequestingPackages(String permission) {
+    HashSet<String> result=requesters.get(permission);
+
+    if (result == null) {
+      return(Collections.<String> emptySet());
+    }
+
+    return(new HashSet<String>(result));
+  }
+
+  /**
+   * @param permissions
+   *          permission names (e.g., your app's custom
+   *          permissions)
+   * @return the packages that request any of these
+   *         permissions
+   */
+  synchronized public Set<String> getPackagesRequestingAny(Collection<String> permissions) {
+    HashSet<String> result=new HashSet<String>();
+
+    for (String permission : permissions) {
+      HashSet<String> pkgs=requesters.get(permission);
+
+      if (pkgs != null) {
+        result.addAll(pkgs);
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * @param packageName
+   *          a package name
+   * @return the permissions defined by this package (empty
+   *         if none, or if the package is not installed)
+   */
+  synchronized public Set<String> getDefinedPermissions(String packageName) {
+    PackageRecord record=packages.get(packageName);
+
+    if (record == null) {
+      return(Collections.<String> emptySet());
+    }
+
+    return(new HashSet<String>(record.defined));
+  }
+
+  // called with the lock held; returns the permissions
+  // whose owner may have changed
+
+  private HashSet<String> add(PackageInfo pkg) {
+    PackageRecord record=new PackageRecord();
+    HashSet<String> changed=remove(pkg.packageName);
+
+    if (pkg.permissions != null) {
+      for (PermissionInfo perm : pkg.permissions) {
+        HashMap<String, Integer> pkgs=definers.get(perm.name);
+
+        record.defined.add(perm.name);
+
+        if (pkgs == null) {
+          pkgs=new HashMap<String, Integer>();
+          definers.put(perm.name, pkgs);
+        }
+
+        pkgs.put(pkg.packageName, perm.protectionLevel);
+        changed.add(perm.name);
+      }
+    }
+
+    if (pkg.requestedPermissions != null) {
+      for (String perm : pkg.requestedPermissions) {
+        HashSet<String> pkgs=requesters.get(perm);
+
+        record.requested.add(perm);
+
+        if (pkgs == null) {
+          pkgs=new HashSet<String>();
+          requesters.put(perm, pkgs);
+        }
+
+        pkgs.add(pkg.packageName);
+      }
+    }
+
+    packages.put(pkg.packageName, record);
+
+    return(changed);
+  }
+
+  // called with the lock held; returns the permissions
+  // whose owner may have changed
+
+  private HashSet<String> remove(String packageName) {
+    HashSet<String> changed=new HashSet<String>();
+    PackageRecord record=packages.remove(packageName);
+
+    if (record != null) {
+      for (String perm : record.defined) {
+        HashMap<String, Integer> pkgs=definers.get(perm);
+
+        if (pkgs != null) {
+          pkgs.remove(packageName);
+
+          if (pkgs.isEmpty()) {
+            definers.remove(perm);
+          }
+        }
+
+        changed.add(perm);
+      }
+
+      for (String perm : record.requested) {
+        HashSet<String> pkgs=requesters.get(perm);
+
+        if (pkgs != null) {
+          pkgs.remove(packageName);
+
+          if (pkgs.isEmpty()) {
+            requesters.remove(perm);
+          }
+        }
+      }
+    }
+
+    return(changed);
+  }
+
+  // a permission declared by only one package belongs to
+  // it; otherwise, the PackageManager knows which package
+  // actually got it, which need not be the first one we
+  // happened to scan, so we ask, outside of the lock
+
+  private void resolve(Set<String> changed) {
+    ArrayList<String> contested=new ArrayList<String>();
+
+    synchronized(this) {
+      for (String perm : changed) {
+        HashMap<String, Integer> pkgs=definers.get(perm);
+        Definition def=owners.get(perm);
+
+        if (pkgs == null) {
+          owners.remove(perm);
+        }
+        else if (pkgs.size() == 1) {
+          Map.Entry<String, Integer> only=pkgs.entrySet().iterator().next();
+
+          owners.put(perm, new Definition(only.getKey(), only.getValue()));
+        }
+        else {
+          if (def != null && !pkgs.containsKey(def.packageName)) {
+            owners.remove(perm);
+          }
+
+          contested.add(perm);
+        }
+      }
+    }
+
+    for (String perm : contested) {
+      PermissionInfo info=null;
+
+      try {
+        info=mgr.getPermissionInfo(perm, 0);
+      }
+      catch (NameNotFoundException e) {
+        // nobody owns it right now
+      }
+
+      synchronized(this) {
+        HashMap<String, Integer> pkgs=definers.get(perm);
+
+        if (pkgs != null && pkgs.size() > 1) {
+          if (info != null && info.packageName != null
+              && pkgs.containsKey(info.packageName)) {
+            owners.put(perm, new Definition(info.packageName,
+                                            info.protectionLevel));
+          }
+          else {
+            // rather than guess
+
+            owners.remove(perm);
+          }
+        }
+      }
+    }
+  }
+
+  // called on the refresher thread, one package at a time,
+  // so refreshes of a package are applied in order
+
+  private void refresh(String packageName) {
+    PackageInfo pkg=null;
+    HashSet<String> changed;
+
+    try {
+      pkg=mgr.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+    }
+    catch (NameNotFoundException e) {
+      // removed, so we just drop it below
+    }
+
+    synchronized(this) {
+      if (refreshedDuringScan != null) {
+        refreshedDuringScan.add(packageName);
+      }
+
+      if (pkg == null) {
+        changed=remove(packageName);
+      }
+      else {
+        changed=add(pkg);
+      }
+    }
+
+    resolve(changed);
+  }
+
+  private static class Definition {
+    final String packageName;
+    final int protectionLevel;
+
+    Definition(String packageName, int protectionLevel) {
+      this.packageName=packageName;
+      this.protectionLevel=protectionLevel;
+    }
+  }
+
+  private static class PackageRecord {
+    final HashSet<String> defined=new HashSet<String>();
+    final HashSet<String> requested=new HashSet<String>();
+  }
+
+  private class PackageReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context ctxt, Intent intent) {
+      Uri data=intent.getData();
+
+      // keep PackageManager calls off of the main
+      // application thread
+
+      if (data != null) {
+        final String packageName=data.getSchemeSpecificPart();
+
+        try {
+          refresher.execute(new Runnable() {
+            @Override
+            public void run() {
+              refresh(packageName);
+            }
+          });
+        }
+        catch (RejectedExecutionException e) {
+          // closed since this broadcast was dispatched
+        }
+      }
+    }
+  }
+}
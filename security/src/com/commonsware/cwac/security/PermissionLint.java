@@ -14,7 +14,9 @@
 
 package com.commonsware.cwac.security;
 
+import android.content.pm.PackageManager;
 import android.content.pm.PermissionInfo;
+import android.text.TextUtils;
 
 public class PermissionLint {
   public PermissionInfo perm=null;
@@ -22,8 +24,50 @@ public class PermissionLint {
   public boolean wasUpgraded=false;
   public boolean proseDiffers=false;
   public boolean signaturesDiffer=false;
+  PermissionInfo myPerm=null;
+  boolean proseChecked=false;
   
   PermissionLint(PermissionInfo perm) {
     this.perm=perm;
   }
+
+  PermissionLint(PermissionInfo perm, PermissionInfo myPerm) {
+    this(perm);
+    this.myPerm=myPerm;
+  }
+
+  /**
+   * Compares the label and description of this permission
+   * with those of our own edition, updating and returning
+   * proseDiffers. If the scan that created this lint
+   * already compared them, this just returns proseDiffers.
+   * Otherwise, this loads resources from the other app, so
+   * call it on a background thread.
+   * 
+   * @param mgr
+   *          a PackageManager
+   * @return the value of proseDiffers
+   */
+  synchronized public boolean checkProse(PackageManager mgr) {
+    if (!proseChecked && myPerm != null) {
+      CharSequence desc=perm.loadDescription(mgr);
+      CharSequence myDesc=myPerm.loadDescription(mgr);
+
+      if (!TextUtils.equals(desc, myDesc)) {
+        proseDiffers=true;
+      }
+      else {
+        CharSequence label=perm.loadLabel(mgr);
+        CharSequence myLabel=myPerm.loadLabel(mgr);
+
+        if (!TextUtils.equals(label, myLabel)) {
+          proseDiffers=true;
+        }
+      }
+
+      proseChecked=true;
+    }
+
+    return(proseDiffers);
+  }
 }
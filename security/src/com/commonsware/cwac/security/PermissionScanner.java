@@ -0,0 +1,569 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PermissionInfo;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Engine behind PermissionUtils.checkCustomPermissions().
+ * Our own custom permissions are indexed by name once, and
+ * the signatures of other packages come back with the same
+ * PackageInfo that supplies their permissions, so a scan is
+ * one pass over the installed packages with no further
+ * PackageManager calls per match, other than for loading
+ * label and description prose. Packages are retrieved a
+ * page at a time via PackagePager.
+ */
+public class PermissionScanner {
+  // official one is API Level 16, so defined here
+  // to avoid setting that minimum SDK requirement
+
+  private static final int PROTECTION_MASK_BASE=0x0000000f;
+  private static final int STATE_VERSION=2;
+  private static final int PACKAGES_PER_TASK=16;
+  private static final int SCAN_FLAGS=PackageManager.GET_PERMISSIONS
+      | PackageManager.GET_SIGNATURES;
+
+  private final PackageManager mgr;
+  private final String packageName;
+  private final long lastUpdateTime;
+  private final HashMap<String, PermissionInfo> myPerms=
+      new HashMap<String, PermissionInfo>();
+  private final byte[] mySignature;
+  private boolean compareProse=true;
+  private volatile boolean cancelled=false;
+
+  /**
+   * @param ctxt
+   *          a Context for the app whose custom permissions
+   *          are to be checked
+   */
+  public PermissionScanner(Context ctxt) {
+    mgr=ctxt.getPackageManager();
+
+    PackageInfo self;
+
+    try {
+      self=
+          mgr.getPackageInfo(ctxt.getPackageName(),
+                             PackageManager.GET_PERMISSIONS
+                                 | PackageManager.GET_SIGNATURES);
+    }
+    catch (NameNotFoundException e) {
+      throw new RuntimeException("We do not exist?!?", e);
+    }
+
+    packageName=self.packageName;
+    lastUpdateTime=self.lastUpdateTime;
+
+    if (self.permissions != null) {
+      for (PermissionInfo perm : self.permissions) {
+        myPerms.put(perm.name, perm);
+      }
+    }
+
+    mySignature=self.signatures[0].toByteArray();
+  }
+
+  /**
+   * Indicates whether scans should compare the label and
+   * description of each redefined permission with our own.
+   * That requires loading resources from the other app, and
+   * is the most expensive part of a scan. If you pass false,
+   * proseDiffers will be false on the resulting lints until
+   * you call checkProse() on them, and the proseDiffers
+   * flag of PermissionFinding results will not be set. The
+   * default is true.
+   * 
+   * @param compareProse
+   *          true to compare prose during the scan, false
+   *          to skip it
+   * @return the scanner, for chained calls
+   */
+  public PermissionScanner compareProse(boolean compareProse) {
+    this.compareProse=compareProse;
+
+    return(this);
+  }
+
+  /**
+   * Scans all other installed packages for redefinitions of
+   * our custom permissions.
+   *
+   * @return map of offending packages to the lints about
+   *         their redefined permissions
+   */
+  public HashMap<PackageInfo, ArrayList<PermissionLint>> scan() {
+    HashMap<PackageInfo, ArrayList<PermissionLint>> results=
+        new HashMap<PackageInfo, ArrayList<PermissionLint>>();
+
+    if (myPerms.isEmpty()) {
+      return(results);
+    }
+
+    for (PackageInfo pkg : new PackagePager(mgr, SCAN_FLAGS)) {
+      ArrayList<PermissionLint> lints=scan(pkg);
+
+      if (lints != null) {
+        results.put(pkg, lints);
+      }
+    }
+
+    return(results);
+  }
+
+  /**
+   * Same as scan(), but delivers the results for each
+   * offending package to the Listener as soon as that
+   * package has been checked, in the compact
+   * PermissionFinding form. Nothing is retained by the
+   * scanner after a package is delivered. Call cancel() (on
+   * any thread) to stop the scan early; a cancel() made
+   * before the scan starts stops it before any package is
+   * checked.
+   * 
+   * @param listener
+   *          the Listener to receive the findings, on the
+   *          calling thread
+   * @return true if the scan completed, false if it was
+   *         cancelled
+   */
+  public boolean scan(Listener listener) {
+    // cancelled is cleared when the scan ends, not when it
+    // starts, so a cancel() that arrives first is not lost
+
+    try {
+      if (cancelled) {
+        return(false);
+      }
+
+      if (myPerms.isEmpty()) {
+        return(true);
+      }
+
+      for (PackageInfo pkg : new PackagePager(mgr, SCAN_FLAGS)) {
+        if (cancelled) {
+          return(false);
+        }
+
+        ArrayList<PermissionLint> lints=scan(pkg);
+
+        if (lints != null) {
+          ArrayList<PermissionFinding> findings=
+              new ArrayList<PermissionFinding>(lints.size());
+
+          for (PermissionLint lint : lints) {
+            findings.add(new PermissionFinding(pkg.packageName, lint));
+          }
+
+          listener.onFindings(pkg.packageName, findings);
+        }
+      }
+
+      return(!cancelled);
+    }
+    finally {
+      cancelled=false;
+    }
+  }
+
+  /**
+   * Stops a scan(Listener) call that is in progress, or the
+   * next one to start if none is. The Listener will not be
+   * called again for that scan.
+   */
+  public void cancel() {
+    cancelled=true;
+  }
+
+  /**
+   * Same as scan(), but splits the installed packages into
+   * batches, retrieving and scanning the batches in
+   * parallel on the supplied Executor. The calling thread blocks until all
+   * batches are done.
+   * 
+   * @param executor
+   *          where to do the scanning (e.g., a thread pool
+   *          sized to the number of cores)
+   * @return map of offending packages to the lints about
+   *         their redefined permissions
+   * @throws InterruptedException
+   *           if interrupted while waiting on the batches
+   */
+  public HashMap<PackageInfo, ArrayList<PermissionLint>> scan(Executor executor)
+                                                                               throws InterruptedException {
+    HashMap<PackageInfo, ArrayList<PermissionLint>> results=
+        new HashMap<PackageInfo, ArrayList<PermissionLint>>();
+
+    if (myPerms.isEmpty()) {
+      return(results);
+    }
+
+    PackagePager pager=new PackagePager(mgr, SCAN_FLAGS);
+    List<String> names=pager.getPackageNames();
+    ArrayList<FutureTask<HashMap<PackageInfo, ArrayList<PermissionLint>>>> tasks=
+        new ArrayList<FutureTask<HashMap<PackageInfo, ArrayList<PermissionLint>>>>();
+
+    for (int i=0; i < names.size(); i+=PACKAGES_PER_TASK) {
+      int end=Math.min(i + PACKAGES_PER_TASK, names.size());
+      BatchScanner batch=new BatchScanner(pager, names.subList(i, end));
+      FutureTask<HashMap<PackageInfo, ArrayList<PermissionLint>>> task=
+          new FutureTask<HashMap<PackageInfo, ArrayList<PermissionLint>>>(batch);
+
+      tasks.add(task);
+      executor.execute(task);
+    }
+
+    for (FutureTask<HashMap<PackageInfo, ArrayList<PermissionLint>>> task : tasks) {
+      try {
+        results.putAll(task.get());
+      }
+      catch (ExecutionException e) {
+        throw new RuntimeException("Exception scanning permissions",
+                                   e.getCause());
+      }
+    }
+
+    return(results);
+  }
+
+  /**
+   * Same as scan(), but only examines packages that were
+   * installed or updated since the last call using the same
+   * state file. The state file holds a compact record of
+   * each package's lastUpdateTime and findings, and is
+   * rewritten by this method. Everything is rescanned if
+   * our own app was updated, the device locale changed, or
+   * the compareProse() setting changed since the state file
+   * was written. Concurrent calls may share a state file;
+   * the last one to finish writes it.
+   *
+   * Note that this performs disk I/O and should be called
+   * on a background thread.
+   *
+   * @param state
+   *          file holding the results of the previous scan
+   *          (need not exist)
+   * @return map of offending package names to findings
+   *         about their redefined permissions
+   */
+  public HashMap<String, ArrayList<PermissionFinding>> scanIncrementally(File state) {
+    String locale=Locale.getDefault().toString();
+    boolean prose=compareProse;
+    HashMap<String, ScanRecord> previous=loadState(state, locale, prose);
+    HashMap<String, ScanRecord> current=new HashMap<String, ScanRecord>();
+    HashMap<String, ArrayList<PermissionFinding>> results=
+        new HashMap<String, ArrayList<PermissionFinding>>();
+    ArrayList<String> changed=new ArrayList<String>();
+
+    // the listing is a small call without flags; only new
+    // and updated packages are then retrieved in full, a page
+    // at a time
+
+    for (PackageInfo pkg : PackagePager.listInstalledPackages(mgr)) {
+      if (packageName.equals(pkg.packageName)) {
+        continue;
+      }
+
+      ScanRecord record=previous.get(pkg.packageName);
+
+      if (record == null || record.lastUpdateTime != pkg.lastUpdateTime) {
+        changed.add(pkg.packageName);
+      }
+      else {
+        current.put(pkg.packageName, record);
+      }
+    }
+
+    if (!changed.isEmpty()) {
+      // packages uninstalled since the listing are skipped
+      // by the pager, and so are dropped from the state
+
+      for (PackageInfo pkg : new PackagePager(mgr, SCAN_FLAGS, changed)) {
+        current.put(pkg.packageName, rescan(pkg));
+      }
+    }
+
+    for (Map.Entry<String, ScanRecord> entry : current.entrySet()) {
+      if (entry.getValue().findings.size() > 0) {
+        results.put(entry.getKey(), entry.getValue().findings);
+      }
+    }
+
+    saveState(state, locale, prose, current);
+
+    return(results);
+  }
+
+  /**
+   * Checks one package for redefinitions of our custom
+   * permissions. The PackageInfo should have been retrieved
+   * using GET_PERMISSIONS and GET_SIGNATURES.
+   *
+   * @param pkg
+   *          the package to check
+   * @return the lints for this package, or null if it does
+   *         not redefine any of our custom permissions
+   */
+  public ArrayList<PermissionLint> scan(PackageInfo pkg) {
+    if (packageName.equals(pkg.packageName) || pkg.permissions == null) {
+      return(null);
+    }
+
+    ArrayList<PermissionLint> lints=null;
+    Boolean sameSigner=null;
+
+    for (PermissionInfo perm : pkg.permissions) {
+      PermissionInfo myPerm=myPerms.get(perm.name);
+
+      if (myPerm != null) {
+        PermissionLint lint=new PermissionLint(perm, myPerm);
+
+        int base=perm.protectionLevel & PROTECTION_MASK_BASE;
+        int myBase=myPerm.protectionLevel & PROTECTION_MASK_BASE;
+
+        if (base < myBase) {
+          lint.wasDowngraded=true;
+        }
+        else if (base > myBase) {
+          lint.wasUpgraded=true;
+        }
+
+        if (isSignature(base) && isSignature(myBase)) {
+          if (sameSigner == null) {
+            sameSigner=Boolean.valueOf(isSameSigner(pkg));
+          }
+
+          lint.signaturesDiffer=!sameSigner.booleanValue();
+        }
+
+        if (compareProse) {
+          lint.checkProse(mgr);
+        }
+
+        if (lints == null) {
+          lints=new ArrayList<PermissionLint>();
+        }
+
+        lints.add(lint);
+      }
+    }
+
+    return(lints);
+  }
+
+  private ScanRecord rescan(PackageInfo pkg) {
+    ScanRecord record=new ScanRecord(pkg.lastUpdateTime);
+    ArrayList<PermissionLint> lints=
+        myPerms.isEmpty() ? null : scan(pkg);
+
+    if (lints != null) {
+      for (PermissionLint lint : lints) {
+        record.findings.add(new PermissionFinding(pkg.packageName, lint));
+      }
+    }
+
+    return(record);
+  }
+
+  private HashMap<String, ScanRecord> loadState(File state, String locale,
+                                                boolean prose) {
+    HashMap<String, ScanRecord> result=new HashMap<String, ScanRecord>();
+
+    if (!state.exists()) {
+      return(result);
+    }
+
+    try {
+      DataInputStream in=
+          new DataInputStream(
+                              new BufferedInputStream(
+                                                      new FileInputStream(state)));
+
+      try {
+        if (in.readInt() != STATE_VERSION
+            || in.readLong() != lastUpdateTime
+            || !locale.equals(in.readUTF()) || in.readBoolean() != prose) {
+          return(result);
+        }
+
+        int count=in.readInt();
+
+        for (int i=0; i < count; i++) {
+          String name=in.readUTF();
+          ScanRecord record=new ScanRecord(in.readLong());
+          int findings=in.readInt();
+
+          for (int j=0; j < findings; j++) {
+            record.findings.add(new PermissionFinding(name, in.readUTF(),
+                                                      in.readInt()));
+          }
+
+          result.put(name, record);
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      Log.w("PermissionScanner", "Exception reading scan state", e);
+      result.clear();
+    }
+
+    return(result);
+  }
+
+  private void saveState(File state, String locale, boolean prose,
+                         HashMap<String, ScanRecord> records) {
+    File tmp=null;
+
+    try {
+      // each scan writes its own temporary file, so concurrent
+      // scans do not write over each other's
+
+      tmp=
+          File.createTempFile("." + state.getName() + "-", ".tmp",
+                              state.getAbsoluteFile().getParentFile());
+
+      DataOutputStream out=
+          new DataOutputStream(
+                               new BufferedOutputStream(
+                                                        new FileOutputStream(tmp)));
+
+      try {
+        out.writeInt(STATE_VERSION);
+        out.writeLong(lastUpdateTime);
+        out.writeUTF(locale);
+        out.writeBoolean(prose);
+        out.writeInt(records.size());
+
+        for (Map.Entry<String, ScanRecord> entry : records.entrySet()) {
+          ScanRecord record=entry.getValue();
+
+          out.writeUTF(entry.getKey());
+          out.writeLong(record.lastUpdateTime);
+          out.writeInt(record.findings.size());
+
+          for (PermissionFinding finding : record.findings) {
+            out.writeUTF(finding.permissionName);
+            out.writeInt(finding.flags);
+          }
+        }
+      }
+      finally {
+        out.close();
+      }
+
+      if (!tmp.renameTo(state)) {
+        throw new IOException("Could not rename " + tmp + " to " + state);
+      }
+    }
+    catch (IOException e) {
+      Log.w("PermissionScanner", "Exception writing scan state", e);
+
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
+  private boolean isSameSigner(PackageInfo pkg) {
+    return(pkg.signatures != null && pkg.signatures.length > 0
+        && Arrays.equals(mySignature, pkg.signatures[0].toByteArray()));
+  }
+
+  private static boolean isSignature(int base) {
+    return(base == PermissionInfo.PROTECTION_SIGNATURE
+        || base == PermissionInfo.PROTECTION_SIGNATURE_OR_SYSTEM);
+  }
+
+  private static class ScanRecord {
+    final long lastUpdateTime;
+    final ArrayList<PermissionFinding> findings=
+        new ArrayList<PermissionFinding>();
+
+    ScanRecord(long lastUpdateTime) {
+      this.lastUpdateTime=lastUpdateTime;
+    }
+  }
+
+  private class BatchScanner implements
+      Callable<HashMap<PackageInfo, ArrayList<PermissionLint>>> {
+    private final PackagePager pager;
+    private final List<String> batch;
+
+    BatchScanner(PackagePager pager, List<String> batch) {
+      this.pager=pager;
+      this.batch=batch;
+    }
+
+    @Override
+    public HashMap<PackageInfo, ArrayList<PermissionLint>> call() {
+      HashMap<PackageInfo, ArrayList<PermissionLint>> results=
+          new HashMap<PackageInfo, ArrayList<PermissionLint>>();
+
+      for (PackageInfo pkg : pager.getPage(batch)) {
+        ArrayList<PermissionLint> lints=scan(pkg);
+
+        if (lints != null) {
+          results.put(pkg, lints);
+        }
+      }
+
+      return(results);
+    }
+  }
+
+  /**
+   * Callback for scan(Listener).
+   */
+  public interface Listener {
+    /**
+     * Called for each package that redefines one or more of
+     * our custom permissions.
+     * 
+     * @param packageName
+     *          the offending package
+     * @param findings
+     *          one entry per redefined permission
+     */
+    void onFindings(String packageName,
+                    ArrayList<PermissionFinding> findings);
+  }
+}
@@ -16,113 +16,44 @@ package com.commonsware.cwac.security;
 
 import android.content.Context;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.PermissionInfo;
-import android.text.TextUtils;
-import android.util.Log;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
 
 public class PermissionUtils {
-  // official one is API Level 16, so defined here
-  // to avoid setting that minimum SDK requirement
-
-  private static final int PROTECTION_MASK_BASE=0x0000000f;
+  private static final String SCAN_STATE="cwac-security-permscan.dat";
 
   public static HashMap<PackageInfo, ArrayList<PermissionLint>> checkCustomPermissions(Context ctxt) {
-    HashMap<PackageInfo, ArrayList<PermissionLint>> results=
-        new HashMap<PackageInfo, ArrayList<PermissionLint>>();
-    PackageManager mgr=ctxt.getPackageManager();
-
-    try {
-      PackageInfo self=
-          mgr.getPackageInfo(ctxt.getPackageName(),
-                             PackageManager.GET_PERMISSIONS);
-
-      for (PackageInfo pkg : mgr.getInstalledPackages(PackageManager.GET_PERMISSIONS)) {
-        if (!pkg.packageName.equals(self.packageName)
-            && pkg.permissions != null) {
-          ArrayList<PermissionLint> lints=
-              new ArrayList<PermissionLint>();
-
-          for (PermissionInfo perm : pkg.permissions) {
-            PermissionInfo myPerm=
-                getPermissionForName(self.permissions, perm.name);
-
-            if (myPerm != null) {
-              PermissionLint lint=new PermissionLint(perm);
-
-              int base=perm.protectionLevel & PROTECTION_MASK_BASE;
-              int myBase=myPerm.protectionLevel & PROTECTION_MASK_BASE;
-
-              if (base < myBase) {
-                lint.wasDowngraded=true;
-              }
-              else if (base > myBase) {
-                lint.wasUpgraded=true;
-              }
-
-              if (base == PermissionInfo.PROTECTION_SIGNATURE
-                  || base == PermissionInfo.PROTECTION_SIGNATURE_OR_SYSTEM) {
-                if (myBase == PermissionInfo.PROTECTION_SIGNATURE
-                    || myBase == PermissionInfo.PROTECTION_SIGNATURE_OR_SYSTEM) {
-                  lint.signaturesDiffer=true;
-
-                  try {
-                    if (SignatureUtils.getOwnSignatureHash(ctxt)
-                                      .equals(SignatureUtils.getSignatureHash(ctxt,
-                                                                              pkg.packageName))) {
-                      lint.signaturesDiffer=false;
-                    }
-                  }
-                  catch (Exception e) {
-                    Log.e("PermissionUtils",
-                          "Exception comparing signatures", e);
-                  }
-                }
-              }
-
-              CharSequence desc=perm.loadDescription(mgr);
-              CharSequence myDesc=myPerm.loadDescription(mgr);
-
-              if (!TextUtils.equals(desc, myDesc)) {
-                lint.proseDiffers=true;
-              }
-              else {
-                CharSequence label=perm.loadLabel(mgr);
-                CharSequence myLabel=myPerm.loadLabel(mgr);
-
-                if (!TextUtils.equals(label, myLabel)) {
-                  lint.proseDiffers=true;
-                }
-              }
-
-              lints.add(lint);
-            }
-          }
-
-          if (lints.size() > 0) {
-            results.put(pkg, lints);
-          }
-        }
-      }
-    }
-    catch (NameNotFoundException e) {
-      throw new RuntimeException("We do not exist?!?", e);
-    }
-
-    return(results);
+    return(new PermissionScanner(ctxt).scan());
   }
 
-  private static PermissionInfo getPermissionForName(PermissionInfo[] perms,
-                                                     String name) {
-    for (PermissionInfo perm : perms) {
-      if (name.equals(perm.name)) {
-        return(perm);
-      }
-    }
+  /**
+   * Same as checkCustomPermissions(Context), but scans
+   * batches of packages in parallel on the supplied
+   * Executor, optionally skipping the comparison of
+   * permission labels and descriptions. If you skip it, call
+   * checkProse() on any PermissionLint whose prose you care
+   * about.
+   */
+  public static HashMap<PackageInfo, ArrayList<PermissionLint>> checkCustomPermissions(Context ctxt,
+                                                                                       Executor executor,
+                                                                                       boolean compareProse)
+                                                                                                            throws InterruptedException {
+    return(new PermissionScanner(ctxt).compareProse(compareProse)
+                                      .scan(executor));
+  }
 
-    return(null);
+  /**
+   * Same as checkCustomPermissions(), but remembers the
+   * results in a file in getFilesDir(), so subsequent calls
+   * only examine packages that were installed or updated in
+   * the meantime. Results are in the compact
+   * PermissionFinding form, keyed by package name. Call
+   * this on a background thread, as it performs disk I/O.
+   */
+  public static HashMap<String, ArrayList<PermissionFinding>> checkCustomPermissionsIncrementally(Context ctxt) {
+    return(new PermissionScanner(ctxt).scanIncrementally(new File(ctxt.getFilesDir(),
+                                                                  SCAN_STATE)));
   }
 }
@@ -0,0 +1,179 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of SHA-256 signing key digests, keyed
+ * by package name and that package's firstInstallTime and
+ * lastUpdateTime. A cached digest is only used if the
+ * package still has the same install and update times, so
+ * an uninstall and reinstall (perhaps by a different
+ * signer) is never mistaken for the original package. That
+ * check is a PackageManager call without GET_SIGNATURES,
+ * which is far cheaper than retrieving and hashing the
+ * signature. The first lookup also registers a receiver
+ * for package add/replace/change/remove broadcasts, which
+ * evicts the affected package, to free memory.
+ */
+public class SignatureCache {
+  private static final String SHA256="SHA-256";
+  private static final ConcurrentHashMap<String, Entry> CACHE=
+      new ConcurrentHashMap<String, Entry>();
+  private static volatile boolean listening=false;
+
+  /**
+   * @return the SHA-256 digest of the package's signing key
+   */
+  public static byte[] getDigest(Context ctxt, String packageName)
+                                                                  throws NameNotFoundException,
+                                                                  NoSuchAlgorithmException {
+    return(lookup(ctxt, packageName).clone());
+  }
+
+  /**
+   * Same as getDigest(Context, String), but uses a
+   * PackageInfo that you already retrieved with
+   * GET_SIGNATURES, avoiding any PackageManager call. The
+   * cached digest is only used if it was computed for the
+   * same firstInstallTime and lastUpdateTime.
+   */
+  public static byte[] getDigest(PackageInfo pkg)
+                                                 throws NoSuchAlgorithmException {
+    return(lookup(pkg).clone());
+  }
+
+  /**
+   * Drops any cached digest for this package.
+   */
+  public static void invalidate(String packageName) {
+    CACHE.remove(packageName);
+  }
+
+  /**
+   * Drops all cached digests.
+   */
+  public static void clear() {
+    CACHE.clear();
+  }
+
+  static byte[] lookup(Context ctxt, String packageName)
+                                                        throws NameNotFoundException,
+                                                        NoSuchAlgorithmException {
+    listen(ctxt);
+
+    PackageManager mgr=ctxt.getPackageManager();
+    Entry entry=CACHE.get(packageName);
+
+    // the broadcasts that evict entries arrive later, on the
+    // main application thread, so confirm that this is still
+    // the same installation of the package
+
+    if (entry != null && entry.matches(mgr.getPackageInfo(packageName, 0))) {
+      return(entry.digest);
+    }
+
+    return(store(mgr.getPackageInfo(packageName,
+                                    PackageManager.GET_SIGNATURES)).digest);
+  }
+
+  static byte[] lookup(PackageInfo pkg) throws NoSuchAlgorithmException {
+    Entry entry=CACHE.get(pkg.packageName);
+
+    if (entry == null || !entry.matches(pkg)) {
+      entry=store(pkg);
+    }
+
+    return(entry.digest);
+  }
+
+  private static Entry store(PackageInfo pkg)
+                                             throws NoSuchAlgorithmException {
+    Entry entry=
+        new Entry(pkg.firstInstallTime, pkg.lastUpdateTime,
+                  SignatureUtils.digest(SHA256,
+                                        pkg.signatures[0].toByteArray()));
+
+    CACHE.put(pkg.packageName, entry);
+
+    return(entry);
+  }
+
+  private static void listen(Context ctxt) {
+    if (!listening) {
+      synchronized(SignatureCache.class) {
+        if (!listening) {
+          Context app=ctxt.getApplicationContext();
+          IntentFilter filter=new IntentFilter();
+
+          filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+          filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+          filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+          filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+          filter.addDataScheme("package");
+
+          (app == null ? ctxt : app).registerReceiver(new PackageReceiver(),
+                                                      filter);
+
+          // anything cached before we were listening may be stale
+
+          CACHE.clear();
+          listening=true;
+        }
+      }
+    }
+  }
+
+  private static class Entry {
+    final long firstInstallTime;
+    final long lastUpdateTime;
+    final byte[] digest;
+
+    Entry(long firstInstallTime, long lastUpdateTime, byte[] digest) {
+      this.firstInstallTime=firstInstallTime;
+      this.lastUpdateTime=lastUpdateTime;
+      this.digest=digest;
+    }
+
+    boolean matches(PackageInfo pkg) {
+      return(firstInstallTime == pkg.firstInstallTime
+          && lastUpdateTime == pkg.lastUpdateTime);
+    }
+  }
+
+  private static class PackageReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context ctxt, Intent intent) {
+      Uri data=intent.getData();
+
+      if (data == null) {
+        clear();
+      }
+      else {
+        invalidate(data.getSchemeSpecificPart());
+      }
+    }
+  }
+}
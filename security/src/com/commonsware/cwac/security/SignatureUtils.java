@@ -15,13 +15,39 @@
 package com.commonsware.cwac.security;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.Signature;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 public class SignatureUtils {
+  private static final String SHA256="SHA-256";
+  private static final char[] HEX_CHARS=
+      { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B',
+          'C', 'D', 'E', 'F' };
+  private static final int MAX_PARSED_PINS=256;
+  private static final ThreadLocal<HashMap<String, MessageDigest>> DIGESTS=
+      new ThreadLocal<HashMap<String, MessageDigest>>() {
+        @Override
+        protected HashMap<String, MessageDigest> initialValue() {
+          return(new HashMap<String, MessageDigest>());
+        }
+      };
+  private static final ConcurrentHashMap<String, byte[]> PARSED_PINS=
+      new ConcurrentHashMap<String, byte[]>();
+
   public static String getOwnSignatureHash(Context ctxt)
                                                         throws NameNotFoundException,
                                                         NoSuchAlgorithmException {
@@ -31,33 +57,299 @@ public class SignatureUtils {
   public static String getSignatureHash(Context ctxt, String packageName)
                                                                          throws NameNotFoundException,
                                                                          NoSuchAlgorithmException {
-    MessageDigest md=MessageDigest.getInstance("SHA-256");
-    Signature sig=
-        ctxt.getPackageManager()
-            .getPackageInfo(packageName, PackageManager.GET_SIGNATURES).signatures[0];
+    return(toHexStringWithColons(SignatureCache.lookup(ctxt, packageName)));
+  }
+
+  /**
+   * Same as getSignatureHash(), but returns the raw
+   * SHA-256 digest instead of a colon-delimited string.
+   */
+  public static byte[] getSignatureDigest(Context ctxt,
+                                          String packageName)
+                                                             throws NameNotFoundException,
+                                                             NoSuchAlgorithmException {
+    return(SignatureCache.getDigest(ctxt, packageName));
+  }
+
+  /**
+   * Returns the digest of the package's signing key, using
+   * the supplied MessageDigest algorithm (e.g., "SHA-1").
+   */
+  public static byte[] getSignatureDigest(Context ctxt,
+                                          String packageName,
+                                          String algorithm)
+                                                           throws NameNotFoundException,
+                                                           NoSuchAlgorithmException {
+    return(digest(algorithm, getSignature(ctxt, packageName).toByteArray()));
+  }
+
+  /**
+   * Returns digests of the package's signing key for each
+   * of the supplied algorithms, keyed by algorithm name,
+   * with only one trip to the PackageManager.
+   */
+  public static HashMap<String, byte[]> getSignatureDigests(Context ctxt,
+                                                            String packageName,
+                                                            String... algorithms)
+                                                                                 throws NameNotFoundException,
+                                                                                 NoSuchAlgorithmException {
+    HashMap<String, byte[]> result=new HashMap<String, byte[]>();
+    byte[] sig=getSignature(ctxt, packageName).toByteArray();
+
+    for (String algorithm : algorithms) {
+      result.put(algorithm, digest(algorithm, sig));
+    }
+
+    return(result);
+  }
+
+  /**
+   * Returns the SHA-256 digests of every signing key of
+   * each of the requested packages, keyed by package name,
+   * in signer order. Signatures are retrieved a page of
+   * packages at a time (see PackagePager), and the hashing
+   * is spread over the supplied Executor, one task per
+   * package. Packages that are not installed are
+   * omitted from the results.
+   *
+   * @param ctxt
+   *          any Context
+   * @param packageNames
+   *          the packages of interest
+   * @param executor
+   *          where to do the hashing (e.g., a thread pool
+   *          sized to the number of cores)
+   * @return the digests, keyed by package name
+   * @throws NoSuchAlgorithmException
+   * @throws InterruptedException
+   *           if interrupted while waiting on the hashing
+   */
+  public static HashMap<String, ArrayList<byte[]>> getSignatureDigests(Context ctxt,
+                                                                      Collection<String> packageNames,
+                                                                      Executor executor)
+                                                                                        throws NoSuchAlgorithmException,
+                                                                                        InterruptedException {
+    HashMap<String, FutureTask<ArrayList<byte[]>>> tasks=
+        new HashMap<String, FutureTask<ArrayList<byte[]>>>();
+    PackagePager pager=
+        new PackagePager(ctxt.getPackageManager(),
+                         PackageManager.GET_SIGNATURES,
+                         new HashSet<String>(packageNames));
+
+    for (PackageInfo pkg : pager) {
+      if (pkg.signatures != null && pkg.signatures.length > 0) {
+        FutureTask<ArrayList<byte[]>> task=
+            new FutureTask<ArrayList<byte[]>>(new SignerDigester(pkg));
+
+        tasks.put(pkg.packageName, task);
+        executor.execute(task);
+      }
+    }
+
+    HashMap<String, ArrayList<byte[]>> result=
+        new HashMap<String, ArrayList<byte[]>>();
+
+    for (Map.Entry<String, FutureTask<ArrayList<byte[]>>> entry : tasks.entrySet()) {
+      try {
+        result.put(entry.getKey(), entry.getValue().get());
+      }
+      catch (ExecutionException e) {
+        if (e.getCause() instanceof NoSuchAlgorithmException) {
+          throw (NoSuchAlgorithmException)e.getCause();
+        }
+
+        throw new RuntimeException("Exception hashing signatures of "
+            + entry.getKey(), e.getCause());
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * Compares the SHA-256 digest of the package's signing
+   * key with an expected digest, in constant time.
+   *
+   * @return true if they match, false otherwise (including
+   *         if the package is not installed)
+   */
+  public static boolean matches(Context ctxt, String packageName,
+                                byte[] expectedDigest)
+                                                      throws NoSuchAlgorithmException {
+    byte[] actual;
+
+    try {
+      actual=SignatureCache.lookup(ctxt, packageName);
+    }
+    catch (NameNotFoundException e) {
+      return(false);
+    }
+
+    return(isEqual(actual, expectedDigest));
+  }
+
+  /**
+   * Same as the byte[] flavor of matches(), but takes the
+   * expected hash in the form returned by
+   * getSignatureHash(), with or without the colons. Parsed
+   * hashes are cached, so repeated checks against the same
+   * expected value do not parse it again.
+   */
+  public static boolean matches(Context ctxt, String packageName,
+                                String expectedHash)
+                                                    throws NoSuchAlgorithmException {
+    byte[] expected=PARSED_PINS.get(expectedHash);
+
+    if (expected == null) {
+      expected=fromHexString(expectedHash);
+
+      if (PARSED_PINS.size() >= MAX_PARSED_PINS) {
+        PARSED_PINS.clear();
+      }
+
+      PARSED_PINS.put(expectedHash, expected);
+    }
+
+    return(matches(ctxt, packageName, expected));
+  }
+
+  /**
+   * Constant-time comparison of two digests. The time taken
+   * depends only on the length of the arrays, not on where
+   * they first differ.
+   */
+  public static boolean isEqual(byte[] a, byte[] b) {
+    if (a == null || b == null || a.length != b.length) {
+      return(false);
+    }
+
+    int diff=0;
+
+    for (int i=0; i < a.length; i++) {
+      diff|=a[i] ^ b[i];
+    }
 
-    return(toHexStringWithColons(md.digest(sig.toByteArray())));
+    return(diff == 0);
   }
 
   // based on https://stackoverflow.com/a/2197650/115145
 
   public static String toHexStringWithColons(byte[] bytes) {
-    char[] hexArray=
-        { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B',
-            'C', 'D', 'E', 'F' };
+    if (bytes.length == 0) {
+      return("");
+    }
+
     char[] hexChars=new char[(bytes.length * 3) - 1];
-    int v;
 
-    for (int j=0; j < bytes.length; j++) {
-      v=bytes[j] & 0xFF;
-      hexChars[j * 3]=hexArray[v / 16];
-      hexChars[j * 3 + 1]=hexArray[v % 16];
+    for (int j=0, k=0; j < bytes.length; j++) {
+      int v=bytes[j] & 0xFF;
+
+      if (j > 0) {
+        hexChars[k++]=':';
+      }
+
+      hexChars[k++]=HEX_CHARS[v >>> 4];
+      hexChars[k++]=HEX_CHARS[v & 0x0F];
+    }
+
+    return(new String(hexChars));
+  }
+
+  /**
+   * Converts a hex string, with or without colon
+   * delimiters, in either case, back into bytes.
+   *
+   * @throws IllegalArgumentException
+   *           if the string is not valid hex
+   */
+  public static byte[] fromHexString(String hex) {
+    int digits=0;
+
+    for (int i=0; i < hex.length(); i++) {
+      if (hex.charAt(i) != ':') {
+        digits++;
+      }
+    }
+
+    if (digits % 2 != 0) {
+      throw new IllegalArgumentException("Odd number of hex digits: "
+          + hex);
+    }
+
+    byte[] result=new byte[digits / 2];
+    int hi=-1;
+    int k=0;
+
+    for (int i=0; i < hex.length(); i++) {
+      char c=hex.charAt(i);
+
+      if (c == ':') {
+        continue;
+      }
+
+      int v=Character.digit(c, 16);
+
+      if (v < 0) {
+        throw new IllegalArgumentException("Invalid hex digit in: "
+            + hex);
+      }
 
-      if (j < bytes.length - 1) {
-        hexChars[j * 3 + 2]=':';
+      if (hi < 0) {
+        hi=v;
+      }
+      else {
+        result[k++]=(byte)((hi << 4) | v);
+        hi=-1;
       }
     }
 
-    return new String(hexChars);
+    return(result);
+  }
+
+  static byte[] digest(String algorithm, byte[] input)
+                                                      throws NoSuchAlgorithmException {
+    HashMap<String, MessageDigest> digests=DIGESTS.get();
+    MessageDigest md=digests.get(algorithm);
+
+    if (md == null) {
+      md=MessageDigest.getInstance(algorithm);
+      digests.put(algorithm, md);
+    }
+    else {
+      md.reset();
+    }
+
+    return(md.digest(input));
+  }
+
+  private static class SignerDigester implements
+      Callable<ArrayList<byte[]>> {
+    private final PackageInfo pkg;
+
+    SignerDigester(PackageInfo pkg) {
+      this.pkg=pkg;
+    }
+
+    @Override
+    public ArrayList<byte[]> call() throws NoSuchAlgorithmException {
+      ArrayList<byte[]> digests=
+          new ArrayList<byte[]>(pkg.signatures.length);
+
+      // the first signer is the one SignatureCache tracks
+
+      digests.add(SignatureCache.getDigest(pkg));
+
+      for (int i=1; i < pkg.signatures.length; i++) {
+        digests.add(digest(SHA256, pkg.signatures[i].toByteArray()));
+      }
+
+      return(digests);
+    }
+  }
+
+  private static Signature getSignature(Context ctxt, String packageName)
+                                                                         throws NameNotFoundException {
+    return(ctxt.getPackageManager()
+               .getPackageInfo(packageName, PackageManager.GET_SIGNATURES).signatures[0]);
   }
 }
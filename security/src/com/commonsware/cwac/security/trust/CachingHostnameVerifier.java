@@ -0,0 +1,271 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.trust;
+
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * HostnameVerifier that parses the subject alternative
+ * names of each server certificate once, into a set of
+ * exact and wildcard names, and caches that index by
+ * certificate. Verifying a host against a certificate that
+ * has been seen before is then a couple of hash lookups.
+ *
+ * Matching follows the usual rules: wildcards only cover a
+ * single, leftmost label, wildcards need at least two
+ * labels after them, IP addresses only match IP address
+ * SANs, and the subject common name is only consulted if
+ * the certificate has no DNS SANs.
+ */
+public class CachingHostnameVerifier implements HostnameVerifier {
+  private static final int DEFAULT_CACHE_SIZE=64;
+  private static final int SAN_DNS=2;
+  private static final int SAN_IP=7;
+
+  private final LinkedHashMap<Certificate, SanIndex> cache;
+
+  public CachingHostnameVerifier() {
+    this(DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * @param cacheSize
+   *          maximum number of certificates whose SAN index
+   *          is retained, least-recently-used first out
+   */
+  public CachingHostnameVerifier(final int cacheSize) {
+    cache=new LinkedHashMap<Certificate, SanIndex>(16, 0.75f, true) {
+      private static final long serialVersionUID=1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Certificate, SanIndex> eldest) {
+        return(size() > cacheSize);
+      }
+    };
+  }
+
+  @Override
+  public boolean verify(String host, SSLSession session) {
+    Certificate[] certs;
+
+    try {
+      certs=session.getPeerCertificates();
+    }
+    catch (SSLPeerUnverifiedException e) {
+      return(false);
+    }
+
+    if (certs == null || certs.length == 0
+        || !(certs[0] instanceof X509Certificate)) {
+      return(false);
+    }
+
+    return(verify(host, (X509Certificate)certs[0]));
+  }
+
+  /**
+   * @param host
+   *          the host name or IP address that was connected
+   *          to
+   * @param cert
+   *          the server (leaf) certificate
+   * @return true if the certificate covers this host, false
+   *         otherwise
+   */
+  public boolean verify(String host, X509Certificate cert) {
+    if (host == null || host.length() == 0) {
+      return(false);
+    }
+
+    return(getIndex(cert).matches(normalize(host)));
+  }
+
+  /**
+   * Drops all cached SAN indexes.
+   */
+  public void clear() {
+    synchronized(cache) {
+      cache.clear();
+    }
+  }
+
+  private SanIndex getIndex(X509Certificate cert) {
+    SanIndex index;
+
+    synchronized(cache) {
+      index=cache.get(cert);
+    }
+
+    if (index == null) {
+      index=new SanIndex(cert);
+
+      synchronized(cache) {
+        cache.put(cert, index);
+      }
+    }
+
+    return(index);
+  }
+
+  private static String normalize(String name) {
+    String result=name.toLowerCase(Locale.US);
+
+    if (result.endsWith(".")) {
+      result=result.substring(0, result.length() - 1);
+    }
+
+    return(result);
+  }
+
+  private static boolean isIpAddress(String host) {
+    if (host.indexOf(':') >= 0) {
+      return(true);
+    }
+
+    for (int i=0; i < host.length(); i++) {
+      char c=host.charAt(i);
+
+      if (c != '.' && (c < '0' || c > '9')) {
+        return(false);
+      }
+    }
+
+    return(true);
+  }
+
+  private static String getCommonName(X500Principal principal) {
+    String dn=principal.getName(X500Principal.RFC2253);
+    int i=0;
+
+    // RFC 2253 lists the most specific RDN first
+
+    while (i < dn.length()) {
+      int end=i;
+      boolean escaped=false;
+
+      while (end < dn.length()) {
+        char c=dn.charAt(end);
+
+        if (escaped) {
+          escaped=false;
+        }
+        else if (c == '\\') {
+          escaped=true;
+        }
+        else if (c == ',' || c == '+') {
+          break;
+        }
+
+        end++;
+      }
+
+      String rdn=dn.substring(i, end).trim();
+
+      if (rdn.regionMatches(true, 0, "CN=", 0, 3)) {
+        return(rdn.substring(3).replace("\\", ""));
+      }
+
+      i=end + 1;
+    }
+
+    return(null);
+  }
+
+  static class SanIndex {
+    final HashSet<String> names=new HashSet<String>();
+    final HashSet<String> wildcardParents=new HashSet<String>();
+    final HashSet<String> addresses=new HashSet<String>();
+
+    SanIndex(X509Certificate cert) {
+      boolean hasDnsNames=false;
+      Collection<List<?>> sans=null;
+
+      try {
+        sans=cert.getSubjectAlternativeNames();
+      }
+      catch (CertificateParsingException e) {
+        // treat as having no SANs
+      }
+
+      if (sans != null) {
+        for (List<?> san : sans) {
+          if (san.size() < 2 || !(san.get(1) instanceof String)) {
+            continue;
+          }
+
+          int type=((Integer)san.get(0)).intValue();
+          String value=(String)san.get(1);
+
+          if (type == SAN_DNS) {
+            hasDnsNames=true;
+            addName(value);
+          }
+          else if (type == SAN_IP) {
+            addresses.add(value.toLowerCase(Locale.US));
+          }
+        }
+      }
+
+      if (!hasDnsNames) {
+        String cn=getCommonName(cert.getSubjectX500Principal());
+
+        if (cn != null) {
+          addName(cn);
+        }
+      }
+    }
+
+    boolean matches(String host) {
+      if (isIpAddress(host)) {
+        return(addresses.contains(host));
+      }
+
+      if (names.contains(host)) {
+        return(true);
+      }
+
+      int dot=host.indexOf('.');
+
+      return(dot > 0 && wildcardParents.contains(host.substring(dot + 1)));
+    }
+
+    private void addName(String name) {
+      String normalized=normalize(name);
+
+      if (normalized.startsWith("*.")) {
+        String parent=normalized.substring(2);
+
+        if (parent.indexOf('.') > 0 && parent.indexOf('*') < 0) {
+          wildcardParents.add(parent);
+        }
+      }
+      else if (normalized.indexOf('*') < 0) {
+        names.add(normalized);
+      }
+    }
+  }
+}
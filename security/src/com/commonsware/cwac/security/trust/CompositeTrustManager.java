@@ -17,14 +17,43 @@ package com.commonsware.cwac.security.trust;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.X509TrustManager;
+import com.commonsware.cwac.security.trust.TrustFlightRecorder.Verdicts;
 
 public class CompositeTrustManager implements X509TrustManager {
+  // how long a check waits on one already underway for the
+  // same chain before giving up and validating on its own,
+  // so a hung validation (e.g., a stalled revocation check)
+  // does not hang every connection to that host with it
+
+  private static final long FOLLOWER_TIMEOUT_MS=5000;
   private ArrayList<X509TrustManager> managers=
       new ArrayList<X509TrustManager>();
   private boolean matchAll;
 
+  // validations underway, so concurrent checks of the same
+  // chain wait for and share one result, rather than each
+  // running the full validation
+
+  private final ConcurrentHashMap<Flight, Flight> flights=
+      new ConcurrentHashMap<Flight, Flight>();
+
+  // the verdicts of the outermost CompositeTrustManager on
+  // this thread that is recording; nested ones (from
+  // and()/or(), or the rules for a host) add their own
+  // verdicts to it, beneath their own entry, rather than
+  // recording decisions of their own
+
+  private static final ThreadLocal<Verdicts> RECORDING=
+      new ThreadLocal<Verdicts>();
+  private volatile TrustFlightRecorder recorder=
+      TrustFlightRecorder.getDefault();
+
   public static CompositeTrustManager matchAll(X509TrustManager... managers) {
     return(new CompositeTrustManager(managers, true));
   }
@@ -68,21 +97,59 @@ public class CompositeTrustManager implements X509TrustManager {
     return(managers.size());
   }
 
+  /**
+   * @return the recorder that decisions are logged to, or
+   *         null if they are not being recorded
+   */
+  public TrustFlightRecorder getRecorder() {
+    return(recorder);
+  }
+
+  /**
+   * Sets where decisions are recorded. By default, this is
+   * TrustFlightRecorder.getDefault().
+   *
+   * @param recorder
+   *          the recorder to use, or null to not record
+   */
+  public void setRecorder(TrustFlightRecorder recorder) {
+    this.recorder=recorder;
+  }
+
   @Override
   public void checkClientTrusted(X509Certificate[] chain,
                                  String authType)
                                                  throws CertificateException {
+    coalesce(new Flight(chain, authType, false));
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain,
+                                 String authType)
+                                                 throws CertificateException {
+    coalesce(new Flight(chain, authType, true));
+  }
+
+  private void validateClient(X509Certificate[] chain, String authType,
+                              Verdicts verdicts)
+                                                throws CertificateException {
     CertificateException first=null;
 
     for (X509TrustManager mgr : managers) {
+      long started=System.nanoTime();
+      int slot=startVerdict(verdicts, mgr);
+
       try {
         mgr.checkClientTrusted(chain, authType);
+        endVerdict(verdicts, slot, started, null);
 
         if (!matchAll) {
           return;
         }
       }
       catch (CertificateException e) {
+        endVerdict(verdicts, slot, started, e);
+
         if (matchAll) {
           throw e;
         }
@@ -90,6 +157,10 @@ public class CompositeTrustManager implements X509TrustManager {
           first=e;
         }
       }
+      catch (RuntimeException e) {
+        endVerdict(verdicts, slot, started, e);
+        throw e;
+      }
     }
 
     if (first != null) {
@@ -97,21 +168,26 @@ public class CompositeTrustManager implements X509TrustManager {
     }
   }
 
-  @Override
-  public void checkServerTrusted(X509Certificate[] chain,
-                                 String authType)
-                                                 throws CertificateException {
+  private void validateServer(X509Certificate[] chain, String authType,
+                              Verdicts verdicts)
+                                                throws CertificateException {
     CertificateException first=null;
 
     for (X509TrustManager mgr : managers) {
+      long started=System.nanoTime();
+      int slot=startVerdict(verdicts, mgr);
+
       try {
         mgr.checkClientTrusted(chain, authType);
+        endVerdict(verdicts, slot, started, null);
 
         if (!matchAll) {
           return;
         }
       }
       catch (CertificateException e) {
+        endVerdict(verdicts, slot, started, e);
+
         if (matchAll) {
           throw e;
         }
@@ -119,6 +195,10 @@ public class CompositeTrustManager implements X509TrustManager {
           first=e;
         }
       }
+      catch (RuntimeException e) {
+        endVerdict(verdicts, slot, started, e);
+        throw e;
+      }
     }
 
     if (first != null) {
@@ -126,6 +206,103 @@ public class CompositeTrustManager implements X509TrustManager {
     }
   }
 
+  /**
+   * Runs the validation described by the Flight, unless an
+   * identical one is already underway on another thread, in
+   * which case we wait for and share its outcome.
+   */
+  private void coalesce(Flight flight) throws CertificateException {
+    Flight leader=flights.putIfAbsent(flight, flight);
+
+    if (leader != null) {
+      if (leader.thread != Thread.currentThread() && leader.await()) {
+        leader.rethrow();
+      }
+      else {
+        // a nested check on the leader's own thread, or the
+        // leader took too long, or we were interrupted while
+        // waiting (leaving the interrupt for our caller to
+        // see), so validate on our own
+
+        validate(flight);
+      }
+
+      return;
+    }
+
+    try {
+      validate(flight);
+    }
+    catch (CertificateException e) {
+      flight.certFailure=e;
+      throw e;
+    }
+    catch (RuntimeException e) {
+      flight.otherFailure=e;
+      throw e;
+    }
+    finally {
+      flights.remove(flight);
+      flight.done.countDown();
+    }
+  }
+
+  private void validate(Flight flight) throws CertificateException {
+    TrustFlightRecorder recorder=this.recorder;
+    Verdicts outer=RECORDING.get();
+
+    if (outer != null || recorder == null) {
+      validate(flight, outer);
+
+      return;
+    }
+
+    Verdicts verdicts=new Verdicts(managers.size());
+    long started=System.nanoTime();
+    Throwable failure=null;
+
+    RECORDING.set(verdicts);
+
+    try {
+      validate(flight, verdicts);
+    }
+    catch (CertificateException e) {
+      failure=e;
+      throw e;
+    }
+    catch (RuntimeException e) {
+      failure=e;
+      throw e;
+    }
+    finally {
+      RECORDING.remove();
+      recorder.record(flight.chain, flight.authType, flight.server,
+                      HostRoutingTrustManager.getHost(), verdicts,
+                      System.nanoTime() - started, failure);
+    }
+  }
+
+  private void validate(Flight flight, Verdicts verdicts)
+                                                         throws CertificateException {
+    if (flight.server) {
+      validateServer(flight.chain, flight.authType, verdicts);
+    }
+    else {
+      validateClient(flight.chain, flight.authType, verdicts);
+    }
+  }
+
+  private static int startVerdict(Verdicts verdicts, X509TrustManager mgr) {
+    return(verdicts == null ? -1 : verdicts.start(mgr));
+  }
+
+  private static void endVerdict(Verdicts verdicts, int slot, long started,
+                                 Throwable failure) {
+    if (verdicts != null) {
+      verdicts.end(slot, started, failure);
+    }
+  }
+
   @Override
   public X509Certificate[] getAcceptedIssuers() {
     HashSet<X509Certificate> issuers=new HashSet<X509Certificate>();
@@ -138,4 +315,74 @@ public class CompositeTrustManager implements X509TrustManager {
 
     return(issuers.toArray(new X509Certificate[issuers.size()]));
   }
+
+  private static class Flight {
+    final X509Certificate[] chain;
+    final String authType;
+    final boolean server;
+    final int hash;
+    final Thread thread=Thread.currentThread();
+    final CountDownLatch done=new CountDownLatch(1);
+    volatile CertificateException certFailure=null;
+    volatile RuntimeException otherFailure=null;
+
+    Flight(X509Certificate[] chain, String authType, boolean server) {
+      this.chain=chain;
+      this.authType=authType;
+      this.server=server;
+
+      // certificates hash and compare by their encoded form
+
+      int result=Arrays.hashCode(chain);
+
+      result=31 * result + (authType == null ? 0 : authType.hashCode());
+      hash=31 * result + (server ? 1 : 0);
+    }
+
+    boolean await() {
+      try {
+        return(done.await(FOLLOWER_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+
+        return(false);
+      }
+    }
+
+    void rethrow() throws CertificateException {
+      if (certFailure != null) {
+        throw certFailure;
+      }
+
+      if (otherFailure != null) {
+        throw otherFailure;
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return(hash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Flight)) {
+        return(false);
+      }
+
+      Flight other=(Flight)o;
+
+      if (server != other.server || hash != other.hash) {
+        return(false);
+      }
+
+      if (authType == null ? other.authType != null
+          : !authType.equals(other.authType)) {
+        return(false);
+      }
+
+      return(Arrays.equals(chain, other.chain));
+    }
+  }
 }
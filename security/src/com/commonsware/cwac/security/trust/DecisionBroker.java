@@ -0,0 +1,185 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.trust;
+
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinates decisions about certificate chains that a
+ * MemorizingTrustManager does not recognize. Rather than
+ * failing immediately, a validation of an unrecognized
+ * chain parks for up to the timeout, waiting for the app to
+ * decide about the chain. Your Listener is called once per
+ * distinct chain, however many validations are waiting on
+ * it; when you call memorizeCert() or allowCertOnce() on
+ * the TrustManagerBuilder (or storeCert() or allowOnce() on
+ * the MemorizingTrustManager), the waiting validations
+ * resume and succeed. Call reject() to have them fail
+ * right away instead. A validation that times out fails
+ * with the usual CertificateNotMemorizedException.
+ *
+ * Supply the broker to MemorizingTrustManager.Options via
+ * decisionBroker().
+ */
+public class DecisionBroker {
+  private final Listener listener;
+  private final long timeoutMs;
+  private final HashMap<List<X509Certificate>, Pending> pending=
+      new HashMap<List<X509Certificate>, Pending>();
+
+  /**
+   * @param listener
+   *          called when a decision is needed about a chain
+   * @param timeout
+   *          how long validations wait for a decision
+   * @param unit
+   *          the unit of timeout
+   */
+  public DecisionBroker(Listener listener, long timeout, TimeUnit unit) {
+    this.listener=listener;
+    this.timeoutMs=unit.toMillis(timeout);
+  }
+
+  /**
+   * Fails all validations waiting on this chain, without
+   * waiting for their timeout.
+   */
+  public void reject(X509Certificate[] chain) {
+    decide(chain, false);
+  }
+
+  /**
+   * Waits for a decision about the chain, calling the
+   * Listener first if no other validation is already
+   * waiting on it.
+   *
+   * @param recheck
+   *          checks the chain again, to catch decisions made
+   *          while no validation was registered as waiting
+   * @return true if the chain was accepted, false if it was
+   *         rejected, or no decision came in time
+   */
+  boolean await(X509Certificate[] chain, Recheck recheck) {
+    List<X509Certificate> key=Arrays.asList(chain);
+    Pending p;
+    boolean first=false;
+
+    synchronized(this) {
+      p=pending.get(key);
+
+      if (p == null) {
+        p=new Pending();
+        pending.put(key, p);
+        first=true;
+      }
+
+      p.waiters++;
+    }
+
+    // a decision made between the failed check and our
+    // registration released nobody; any later one will find
+    // us, so check once more before asking or parking
+
+    if (recheck.isTrusted()) {
+      leave(key, p);
+
+      return(true);
+    }
+
+    if (first) {
+      listener.onDecisionNeeded(chain.clone());
+    }
+
+    boolean decided=false;
+
+    try {
+      decided=p.done.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (decided) {
+      return(p.accepted);
+    }
+
+    leave(key, p);
+
+    // the decision may have been recorded just as we gave up
+
+    return(recheck.isTrusted());
+  }
+
+  /**
+   * Releases the validations waiting on this chain.
+   */
+  void decide(X509Certificate[] chain, boolean accepted) {
+    Pending p;
+
+    synchronized(this) {
+      p=pending.remove(Arrays.asList(chain));
+    }
+
+    if (p != null) {
+      p.accepted=accepted;
+      p.done.countDown();
+    }
+  }
+
+  // once nobody is waiting, forget the chain, so the next
+  // failure asks again
+
+  synchronized private void leave(List<X509Certificate> key, Pending p) {
+    if (--p.waiters == 0 && pending.get(key) == p) {
+      pending.remove(key);
+    }
+  }
+
+  /**
+   * Checks a chain against the decisions recorded so far
+   * (e.g., memorized or allowed-once certificates).
+   */
+  interface Recheck {
+    boolean isTrusted();
+  }
+
+  /**
+   * Callback for decisions needed about unrecognized
+   * certificate chains.
+   */
+  public interface Listener {
+    /**
+     * Called on the thread performing the validation, which
+     * is about to block waiting for the decision. Arrange
+     * for the decision (e.g., by posting a dialog to the
+     * main application thread) and return promptly.
+     *
+     * @param chain
+     *          the unrecognized certificate chain
+     */
+    void onDecisionNeeded(X509Certificate[] chain);
+  }
+
+  private static class Pending {
+    final CountDownLatch done=new CountDownLatch(1);
+    volatile boolean accepted=false;
+    int waiters=0;
+  }
+}
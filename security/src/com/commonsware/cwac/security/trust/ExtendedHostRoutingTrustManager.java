@@ -0,0 +1,104 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+package com.commonsware.cwac.security.trust;
+
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * Hands a HostRoutingTrustManager the host from the SSL
+ * handshake under way. X509ExtendedTrustManager is only
+ * available on API Level 24 and higher, so only refer to
+ * this class after checking the API level.
+ */
+class ExtendedHostRoutingTrustManager extends X509ExtendedTrustManager {
+  private final HostRoutingTrustManager router;
+
+  ExtendedHostRoutingTrustManager(HostRoutingTrustManager router) {
+    this.router=router;
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain,
+                                 String authType)
+                                                 throws CertificateException {
+    router.checkClientTrusted(chain, authType);
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain,
+                                 String authType, Socket socket)
+                                                                throws CertificateException {
+    router.checkClientTrusted(chain, authType);
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain,
+                                 String authType, SSLEngine engine)
+                                                                   throws CertificateException {
+    router.checkClientTrusted(chain, authType);
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain,
+                                 String authType)
+                                                 throws CertificateException {
+    router.checkServerTrusted(chain, authType);
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain,
+                                 String authType, Socket socket)
+                                                                throws CertificateException {
+    SSLSession session=null;
+
+    if (socket instanceof SSLSocket) {
+      session=((SSLSocket)socket).getHandshakeSession();
+    }
+
+    router.checkServerTrusted(chain, authType, getPeerHost(session));
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain,
+                                 String authType, SSLEngine engine)
+                                                                   throws CertificateException {
+    SSLSession session=(engine == null ? null : engine.getHandshakeSession());
+
+    router.checkServerTrusted(chain, authType, getPeerHost(session));
+  }
+
+  @Override
+  public X509Certificate[] getAcceptedIssuers() {
+    return(router.getAcceptedIssuers());
+  }
+
+  HostRoutingTrustManager getRouter() {
+    return(router);
+  }
+
+  // null (and so the strictest rules) if the handshake
+  // does not say
+
+  private static String getPeerHost(SSLSession session) {
+    return(session == null ? null : session.getPeerHost());
+  }
+}
@@ -0,0 +1,140 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.trust;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashSet;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * TrustManager that validates server certificates using the
+ * rules set up for the server's host via
+ * TrustManagerBuilder.forHost(), falling back to the
+ * builder's own rules for other hosts. Only the rules for
+ * the matching host are evaluated.
+ *
+ * A plain X509TrustManager is not told which host it is
+ * validating. On API Level 24 and higher,
+ * TrustManagerBuilder.build() wraps this in an
+ * X509ExtendedTrustManager, which gets the host from the
+ * SSL handshake. Otherwise, get one from
+ * TrustManagerBuilder.buildHostRouter() and call the
+ * three-parameter checkServerTrusted() yourself. If the host is not known,
+ * a certificate is only accepted if the fallback rules and
+ * the rules for every host all accept it, so stricter
+ * rules for a host cannot be bypassed.
+ */
+public class HostRoutingTrustManager implements X509TrustManager {
+  private static final ThreadLocal<String> HOST=new ThreadLocal<String>();
+  private final X509TrustManager fallback;
+  private final HostTrie<TrustManagerBuilder> routes;
+
+  HostRoutingTrustManager(X509TrustManager fallback,
+                          HostTrie<TrustManagerBuilder> routes) {
+    this.fallback=fallback;
+    this.routes=routes;
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain,
+                                 String authType)
+                                                 throws CertificateException {
+    fallback.checkClientTrusted(chain, authType);
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain,
+                                 String authType)
+                                                 throws CertificateException {
+    checkServerTrusted(chain, authType, null);
+  }
+
+  /**
+   * Validates a server certificate chain using the rules for
+   * this host.
+   *
+   * @param host
+   *          the host being connected to, or null if it is
+   *          not known, in which case all of the rules must
+   *          accept the chain
+   */
+  public void checkServerTrusted(X509Certificate[] chain,
+                                 String authType, String host)
+                                                              throws CertificateException {
+    String previous=HOST.get();
+
+    HOST.set(host);
+
+    try {
+      if (host == null) {
+        fallback.checkServerTrusted(chain, authType);
+
+        for (TrustManagerBuilder builder : routes.values()) {
+          ((X509TrustManager)builder.build()).checkServerTrusted(chain,
+                                                                 authType);
+        }
+      }
+      else {
+        getTrustManager(host).checkServerTrusted(chain, authType);
+      }
+    }
+    finally {
+      HOST.set(previous);
+    }
+  }
+
+  /**
+   * @return the issuers accepted by the fallback rules or
+   *         by the rules for any host
+   */
+  @Override
+  public X509Certificate[] getAcceptedIssuers() {
+    LinkedHashSet<X509Certificate> result=new LinkedHashSet<X509Certificate>();
+
+    for (X509Certificate cert : fallback.getAcceptedIssuers()) {
+      result.add(cert);
+    }
+
+    for (TrustManagerBuilder builder : routes.values()) {
+      for (X509Certificate cert : ((X509TrustManager)builder.build()).getAcceptedIssuers()) {
+        result.add(cert);
+      }
+    }
+
+    return(result.toArray(new X509Certificate[result.size()]));
+  }
+
+  X509TrustManager getFallback() {
+    return(fallback);
+  }
+
+  /**
+   * @return the rules for this host
+   */
+  X509TrustManager getTrustManager(String host) {
+    TrustManagerBuilder builder=routes.get(host);
+
+    return(builder == null ? fallback : (X509TrustManager)builder.build());
+  }
+
+  /**
+   * @return the host being validated on this thread, or
+   *         null if it is not known
+   */
+  static String getHost() {
+    return(HOST.get());
+  }
+}
@@ -0,0 +1,146 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.trust;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Maps hostname patterns to values, stored as a trie keyed
+ * by hostname labels in reverse order (com, example, www),
+ * so a lookup costs one hash lookup per label of the host,
+ * however many patterns there are. A pattern is either an
+ * exact hostname ("www.example.com") or a wildcard
+ * ("*.example.com"), which matches any host beneath that
+ * domain, at any depth, but not the domain itself. An exact
+ * match beats a wildcard, and a deeper wildcard beats a
+ * shallower one.
+ */
+class HostTrie<T> {
+  private final Node<T> root=new Node<T>();
+
+  synchronized void put(String pattern, T value) {
+    String host=normalize(pattern);
+    boolean wildcard=host.startsWith("*.");
+
+    if (wildcard) {
+      host=host.substring(2);
+    }
+
+    if (host.length() == 0 || host.indexOf('*') >= 0) {
+      throw new IllegalArgumentException("Invalid host pattern: "
+          + pattern);
+    }
+
+    Node<T> node=root;
+    int end=host.length();
+
+    while (end > 0) {
+      int dot=host.lastIndexOf('.', end - 1);
+      String label=host.substring(dot + 1, end);
+      Node<T> child=node.children.get(label);
+
+      if (child == null) {
+        child=new Node<T>();
+        node.children.put(label, child);
+      }
+
+      node=child;
+      end=dot;
+    }
+
+    if (wildcard) {
+      node.wildcard=value;
+    }
+    else {
+      node.exact=value;
+    }
+  }
+
+  /**
+   * @return the value for the best pattern matching this
+   *         host, or null if none match
+   */
+  synchronized T get(String hostname) {
+    String host=normalize(hostname);
+    Node<T> node=root;
+    T best=null;
+    int end=host.length();
+
+    while (end > 0) {
+      // labels remain, so the host is beneath this node
+
+      if (node.wildcard != null) {
+        best=node.wildcard;
+      }
+
+      int dot=host.lastIndexOf('.', end - 1);
+
+      node=node.children.get(host.substring(dot + 1, end));
+
+      if (node == null) {
+        return(best);
+      }
+
+      end=dot;
+    }
+
+    return(node.exact == null ? best : node.exact);
+  }
+
+  /**
+   * @return all of the values, in no particular order
+   */
+  synchronized List<T> values() {
+    ArrayList<T> result=new ArrayList<T>();
+    ArrayList<Node<T>> pending=new ArrayList<Node<T>>();
+
+    pending.add(root);
+
+    while (!pending.isEmpty()) {
+      Node<T> node=pending.remove(pending.size() - 1);
+
+      if (node.exact != null) {
+        result.add(node.exact);
+      }
+
+      if (node.wildcard != null) {
+        result.add(node.wildcard);
+      }
+
+      pending.addAll(node.children.values());
+    }
+
+    return(result);
+  }
+
+  private static String normalize(String host) {
+    String result=host.toLowerCase(Locale.US);
+
+    if (result.endsWith(".")) {
+      result=result.substring(0, result.length() - 1);
+    }
+
+    return(result);
+  }
+
+  private static class Node<T> {
+    final HashMap<String, Node<T>> children=new HashMap<String, Node<T>>();
+    T exact=null;
+    T wildcard=null;
+  }
+}
@@ -0,0 +1,806 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.trust;
+
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.util.Base64;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * TrustManager that trusts a set of certificate
+ * authorities (CAs) held in a PEM bundle (many
+ * "-----BEGIN CERTIFICATE-----" blocks in one file) or in
+ * an OpenSSL-style hashed directory (one file per CA, named
+ * for the hash of the CA's subject, as created by
+ * c_rehash or "openssl rehash", or as used by Android's
+ * own /system/etc/security/cacerts).
+ *
+ * Nothing is loaded when this is created. When a
+ * certificate chain is checked, only the CAs whose subject
+ * matches the issuer of a certificate in the chain are
+ * parsed, and they are kept for later checks. For a
+ * bundle, the first check reads the file and indexes the
+ * blocks by subject, without parsing the certificates
+ * themselves. For a directory, the files for an issuer are
+ * found from its subject hash, in either the current
+ * OpenSSL format or the older one that Android uses.
+ *
+ * CAs are looked up once per issuer, so a CA added to a
+ * directory later is not seen by an existing instance.
+ * getAcceptedIssuers() has to load all of the CAs.
+ */
+public class LazyCATrustManager implements X509TrustManager {
+  private static final String X509="X.509";
+  private static final String PEM_BEGIN="-----BEGIN CERTIFICATE-----";
+  private static final String PEM_END="-----END CERTIFICATE-----";
+  private static final Pattern HASH_FILE=
+      Pattern.compile("[0-9a-f]{8}\\.[0-9]+");
+  private static final int SEQUENCE=0x30;
+  private static final int SET=0x31;
+  private static final int UTF8_STRING=0x0C;
+  private static final int PRINTABLE_STRING=0x13;
+  private static final int T61_STRING=0x14;
+  private static final int IA5_STRING=0x16;
+  private static final int VISIBLE_STRING=0x1A;
+  private static final int UNIVERSAL_STRING=0x1C;
+  private static final int BMP_STRING=0x1E;
+
+  private final Source source;
+
+  // issuers looked up so far, with the CAs found (if any);
+  // only updated with the lock held, once the delegate
+  // includes those CAs
+
+  private final ConcurrentHashMap<X500Principal, List<X509Certificate>> issuers=
+      new ConcurrentHashMap<X500Principal, List<X509Certificate>>();
+  private final LinkedHashSet<X509Certificate> anchors=
+      new LinkedHashSet<X509Certificate>();
+  private volatile X509TrustManager delegate=null;
+  private boolean complete=false;
+
+  /**
+   * @param dir
+   *          an OpenSSL-style hashed directory of CA
+   *          certificates
+   * @return a TrustManager for the CAs in that directory
+   */
+  public static LazyCATrustManager forDirectory(File dir) {
+    return(new LazyCATrustManager(new HashedDirectory(dir)));
+  }
+
+  /**
+   * @param bundle
+   *          a file of PEM-encoded CA certificates
+   * @return a TrustManager for the CAs in that file
+   */
+  public static LazyCATrustManager forBundle(final File bundle) {
+    return(new LazyCATrustManager(new Bundle() {
+      @Override
+      InputStream open() throws IOException {
+        return(new FileInputStream(bundle));
+      }
+    }));
+  }
+
+  /**
+   * @param assets
+   *          an AssetManager, from getAssets() on a Context
+   * @param assetPath
+   *          path within assets/ of a file of PEM-encoded CA
+   *          certificates
+   * @return a TrustManager for the CAs in that file
+   */
+  public static LazyCATrustManager forBundle(final AssetManager assets,
+                                             final String assetPath) {
+    return(new LazyCATrustManager(new Bundle() {
+      @Override
+      InputStream open() throws IOException {
+        return(assets.open(assetPath));
+      }
+    }));
+  }
+
+  /**
+   * @param res
+   *          a Resources, from getResources() on a Context
+   * @param rawResourceId
+   *          raw resource ID of a file of PEM-encoded CA
+   *          certificates
+   * @return a TrustManager for the CAs in that file
+   */
+  public static LazyCATrustManager forBundle(final Resources res,
+                                             final int rawResourceId) {
+    return(new LazyCATrustManager(new Bundle() {
+      @Override
+      InputStream open() throws IOException {
+        return(res.openRawResource(rawResourceId));
+      }
+    }));
+  }
+
+  private LazyCATrustManager(Source source) {
+    this.source=source;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain, String authType)
+                                                                          throws CertificateException {
+    getDelegate(chain).checkClientTrusted(chain, authType);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain, String authType)
+                                                                          throws CertificateException {
+    getDelegate(chain).checkServerTrusted(chain, authType);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  synchronized public X509Certificate[] getAcceptedIssuers() {
+    if (!complete) {
+      try {
+        addAnchors(source.findAll());
+        complete=true;
+      }
+      catch (Exception e) {
+        IllegalStateException ise=
+            new IllegalStateException("Could not load certificate authorities");
+
+        ise.initCause(e); // IllegalStateException(String, Throwable) is API 9
+        throw ise;
+      }
+    }
+
+    return(anchors.toArray(new X509Certificate[anchors.size()]));
+  }
+
+  private X509TrustManager getDelegate(X509Certificate[] chain)
+                                                               throws CertificateException {
+    if (chain != null) {
+      for (X509Certificate cert : chain) {
+        if (!issuers.containsKey(cert.getIssuerX500Principal())) {
+          load(chain);
+          break;
+        }
+      }
+    }
+
+    X509TrustManager result=delegate;
+
+    if (result == null) {
+      throw new CertificateException("No trusted certificate authority found");
+    }
+
+    return(result);
+  }
+
+  synchronized private void load(X509Certificate[] chain)
+                                                         throws CertificateException {
+    HashMap<X500Principal, List<X509Certificate>> found=
+        new HashMap<X500Principal, List<X509Certificate>>();
+    ArrayList<X509Certificate> added=new ArrayList<X509Certificate>();
+
+    for (X509Certificate cert : chain) {
+      X500Principal issuer=cert.getIssuerX500Principal();
+
+      if (!issuers.containsKey(issuer) && !found.containsKey(issuer)) {
+        List<X509Certificate> cas;
+
+        if (complete) {
+          cas=Collections.<X509Certificate> emptyList();
+        }
+        else {
+          try {
+            cas=source.find(issuer);
+          }
+          catch (IOException e) {
+            throw new CertificateException("Could not load certificate authorities",
+                                           e);
+          }
+        }
+
+        found.put(issuer, cas);
+        added.addAll(cas);
+      }
+    }
+
+    addAnchors(added);
+    issuers.putAll(found);
+  }
+
+  // called with the lock held
+
+  private void addAnchors(List<X509Certificate> certs)
+                                                      throws CertificateException {
+    if (!anchors.addAll(certs)) {
+      return;
+    }
+
+    try {
+      KeyStore store=KeyStore.getInstance(KeyStore.getDefaultType());
+      int i=0;
+
+      store.load(null, null);
+
+      for (X509Certificate cert : anchors) {
+        store.setCertificateEntry("ca" + i++, cert);
+      }
+
+      TrustManagerFactory tmf=
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+
+      tmf.init(store);
+
+      for (TrustManager mgr : tmf.getTrustManagers()) {
+        if (mgr instanceof X509TrustManager) {
+          delegate=(X509TrustManager)mgr;
+          break;
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new CertificateException(e);
+    }
+    catch (GeneralSecurityException e) {
+      throw new CertificateException(e);
+    }
+  }
+
+  /**
+   * @return the hash of this DER-encoded X.500 name that
+   *         current versions of OpenSSL use for file names
+   *         in hashed directories (X509_NAME_hash())
+   */
+  static int getSubjectHash(byte[] name) throws IOException {
+    Der der=new Der(name);
+    int end=der.enter(SEQUENCE);
+    ByteArrayOutputStream canon=new ByteArrayOutputStream();
+
+    // the name is encoded with each string value converted
+    // to UTF-8, trimmed, with whitespace runs collapsed and
+    // ASCII letters lowercased, and without the outer
+    // SEQUENCE header
+
+    while (der.pos < end) {
+      int rdnEnd=der.enter(SET);
+      ArrayList<byte[]> entries=new ArrayList<byte[]>();
+
+      while (der.pos < rdnEnd) {
+        int entryEnd=der.enter(SEQUENCE);
+        ByteArrayOutputStream entry=new ByteArrayOutputStream();
+
+        entry.write(der.read());
+
+        int tag=der.tag();
+        byte[] value=der.read();
+        byte[] text=toUtf8(tag, value, Der.contentOffset(value));
+
+        if (text == null) {
+          entry.write(value);
+        }
+        else {
+          entry.write(Der.encode(UTF8_STRING, canonicalize(text)));
+        }
+
+        entries.add(Der.encode(SEQUENCE, entry.toByteArray()));
+        der.pos=entryEnd;
+      }
+
+      // SET OF is encoded in sorted order
+
+      Collections.sort(entries, new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] lhs, byte[] rhs) {
+          for (int i=0; i < lhs.length && i < rhs.length; i++) {
+            if (lhs[i] != rhs[i]) {
+              return((lhs[i] & 0xFF) - (rhs[i] & 0xFF));
+            }
+          }
+
+          return(lhs.length - rhs.length);
+        }
+      });
+
+      ByteArrayOutputStream rdn=new ByteArrayOutputStream();
+
+      for (byte[] entry : entries) {
+        rdn.write(entry);
+      }
+
+      canon.write(Der.encode(SET, rdn.toByteArray()));
+    }
+
+    return(hash("SHA-1", canon.toByteArray()));
+  }
+
+  /**
+   * @return the hash of this DER-encoded X.500 name that
+   *         OpenSSL used before 1.0 (X509_NAME_hash_old()),
+   *         and that Android uses for its own CA directory
+   */
+  static int getLegacySubjectHash(byte[] name) {
+    return(hash("MD5", name));
+  }
+
+  private static int hash(String algorithm, byte[] input) {
+    try {
+      byte[] md=MessageDigest.getInstance(algorithm).digest(input);
+
+      return((md[0] & 0xFF) | ((md[1] & 0xFF) << 8) | ((md[2] & 0xFF) << 16)
+          | ((md[3] & 0xFF) << 24));
+    }
+    catch (GeneralSecurityException e) {
+      IllegalStateException ise=
+          new IllegalStateException("Could not hash subject");
+
+      ise.initCause(e); // IllegalStateException(Throwable) is API 9
+      throw ise;
+    }
+  }
+
+  // Arrays.copyOfRange() is API 9
+
+  private static byte[] copyOfRange(byte[] src, int start, int end) {
+    byte[] result=new byte[end - start];
+
+    System.arraycopy(src, start, result, 0, result.length);
+
+    return(result);
+  }
+
+  // returns null for types that OpenSSL leaves alone
+
+  private static byte[] toUtf8(int tag, byte[] tlv, int offset)
+                                                               throws IOException {
+    byte[] content=copyOfRange(tlv, offset, tlv.length);
+
+    switch (tag) {
+      case UTF8_STRING:
+        return(content);
+
+      case PRINTABLE_STRING:
+      case T61_STRING:
+      case IA5_STRING:
+      case VISIBLE_STRING:
+        return(new String(content, "ISO-8859-1").getBytes("UTF-8"));
+
+      case BMP_STRING:
+        return(new String(content, "UTF-16BE").getBytes("UTF-8"));
+
+      case UNIVERSAL_STRING:
+        StringBuilder buf=new StringBuilder();
+
+        for (int i=0; i + 3 < content.length; i+=4) {
+          buf.appendCodePoint(((content[i] & 0xFF) << 24)
+              | ((content[i + 1] & 0xFF) << 16)
+              | ((content[i + 2] & 0xFF) << 8) | (content[i + 3] & 0xFF));
+        }
+
+        return(buf.toString().getBytes("UTF-8"));
+    }
+
+    return(null);
+  }
+
+  private static byte[] canonicalize(byte[] text) {
+    ByteArrayOutputStream result=new ByteArrayOutputStream(text.length);
+    int start=0;
+    int end=text.length;
+
+    while (start < end && isSpace(text[start])) {
+      start++;
+    }
+
+    while (end > start && isSpace(text[end - 1])) {
+      end--;
+    }
+
+    for (int i=start; i < end; i++) {
+      byte b=text[i];
+
+      if (isSpace(b)) {
+        result.write(' ');
+
+        while (isSpace(text[i + 1])) {
+          i++;
+        }
+      }
+      else if (b >= 'A' && b <= 'Z') {
+        result.write(b + ('a' - 'A'));
+      }
+      else {
+        result.write(b);
+      }
+    }
+
+    return(result.toByteArray());
+  }
+
+  private static boolean isSpace(byte b) {
+    return(b == ' ' || (b >= '\t' && b <= '\r'));
+  }
+
+  /**
+   * @return the DER-encoded subject of this DER-encoded
+   *         certificate, found without parsing the rest
+   */
+  static byte[] getSubject(byte[] cert) throws IOException {
+    Der der=new Der(cert);
+
+    der.enter(SEQUENCE); // Certificate
+    der.enter(SEQUENCE); // TBSCertificate
+
+    if (der.tag() == 0xA0) {
+      der.read(); // version
+    }
+
+    der.read(); // serialNumber
+    der.read(); // signature
+    der.read(); // issuer
+    der.read(); // validity
+
+    return(der.read());
+  }
+
+  private static List<X509Certificate> parse(InputStream in, X500Principal subject)
+                                                                                throws IOException,
+                                                                                CertificateException {
+    ArrayList<X509Certificate> result=new ArrayList<X509Certificate>();
+
+    try {
+      for (Certificate cert : CertificateFactory.getInstance(X509)
+                                                .generateCertificates(in)) {
+        X509Certificate x509=(X509Certificate)cert;
+
+        if (subject == null || subject.equals(x509.getSubjectX500Principal())) {
+          result.add(x509);
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    return(result);
+  }
+
+  private abstract static class Source {
+    /**
+     * @return the CAs with this subject (empty if none)
+     */
+    abstract List<X509Certificate> find(X500Principal subject)
+                                                              throws IOException,
+                                                              CertificateException;
+
+    abstract List<X509Certificate> findAll() throws IOException,
+                                            CertificateException;
+  }
+
+  private static class HashedDirectory extends Source {
+    final File dir;
+
+    HashedDirectory(File dir) {
+      this.dir=dir;
+    }
+
+    @Override
+    List<X509Certificate> find(X500Principal subject) throws IOException,
+                                                     CertificateException {
+      byte[] name=subject.getEncoded();
+      int hash=getSubjectHash(name);
+      int legacy=getLegacySubjectHash(name);
+      ArrayList<X509Certificate> result=new ArrayList<X509Certificate>();
+
+      find(hash, subject, result);
+
+      if (legacy != hash) {
+        find(legacy, subject, result);
+      }
+
+      return(result);
+    }
+
+    // files for one hash are numbered from 0, with higher
+    // numbers for other CAs whose subject hashes the same
+
+    private void find(int hash, X500Principal subject,
+                      List<X509Certificate> result) throws IOException,
+                                                   CertificateException {
+      for (int i=0;; i++) {
+        File f=new File(dir, String.format("%08x.%d", hash, i));
+
+        if (!f.isFile()) {
+          break;
+        }
+
+        result.addAll(parse(new FileInputStream(f), subject));
+      }
+    }
+
+    @Override
+    List<X509Certificate> findAll() throws IOException,
+                                   CertificateException {
+      ArrayList<X509Certificate> result=new ArrayList<X509Certificate>();
+      String[] names=dir.list();
+
+      if (names != null) {
+        for (String name : names) {
+          if (HASH_FILE.matcher(name).matches()) {
+            result.addAll(parse(new FileInputStream(new File(dir, name)), null));
+          }
+        }
+      }
+
+      return(result);
+    }
+  }
+
+  private abstract static class Bundle extends Source {
+    private HashMap<X500Principal, ArrayList<byte[]>> index=null;
+
+    abstract InputStream open() throws IOException;
+
+    @Override
+    List<X509Certificate> find(X500Principal subject) throws IOException,
+                                                     CertificateException {
+      ArrayList<byte[]> certs=getIndex().get(subject);
+      ArrayList<X509Certificate> result=new ArrayList<X509Certificate>();
+
+      if (certs != null) {
+        for (byte[] cert : certs) {
+          result.addAll(parse(new ByteArrayInputStream(cert), subject));
+        }
+      }
+
+      return(result);
+    }
+
+    @Override
+    List<X509Certificate> findAll() throws IOException,
+                                   CertificateException {
+      ArrayList<X509Certificate> result=new ArrayList<X509Certificate>();
+
+      for (ArrayList<byte[]> certs : getIndex().values()) {
+        for (byte[] cert : certs) {
+          result.addAll(parse(new ByteArrayInputStream(cert), null));
+        }
+      }
+
+      return(result);
+    }
+
+    // called with the manager's lock held
+
+    private HashMap<X500Principal, ArrayList<byte[]>> getIndex()
+                                                                throws IOException,
+                                                                CertificateException {
+      if (index == null) {
+        HashMap<X500Principal, ArrayList<byte[]>> result=
+            new HashMap<X500Principal, ArrayList<byte[]>>();
+        byte[] raw=readFully(open());
+        String text=new String(raw, "ISO-8859-1");
+        int begin=text.indexOf(PEM_BEGIN);
+
+        if (begin < 0) {
+          // not PEM, so let CertificateFactory sort it out
+          // (e.g., DER or PKCS#7)
+
+          for (X509Certificate cert : parse(new ByteArrayInputStream(raw),
+                                            null)) {
+            add(result, cert.getSubjectX500Principal(), cert.getEncoded());
+          }
+        }
+
+        while (begin >= 0) {
+          int end=text.indexOf(PEM_END, begin);
+
+          if (end < 0) {
+            throw new IOException("Unterminated certificate in bundle");
+          }
+
+          byte[] cert=
+              Base64.decode(text.substring(begin + PEM_BEGIN.length(), end),
+                            Base64.DEFAULT);
+
+          add(result, new X500Principal(getSubject(cert)), cert);
+          begin=text.indexOf(PEM_BEGIN, end);
+        }
+
+        index=result;
+      }
+
+      return(index);
+    }
+
+    private static void add(HashMap<X500Principal, ArrayList<byte[]>> index,
+                            X500Principal subject, byte[] cert) {
+      ArrayList<byte[]> certs=index.get(subject);
+
+      if (certs == null) {
+        certs=new ArrayList<byte[]>();
+        index.put(subject, certs);
+      }
+
+      certs.add(cert);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+      ByteArrayOutputStream out=new ByteArrayOutputStream();
+      byte[] buf=new byte[8192];
+      int n;
+
+      try {
+        while ((n=in.read(buf)) >= 0) {
+          out.write(buf, 0, n);
+        }
+      }
+      finally {
+        in.close();
+      }
+
+      return(out.toByteArray());
+    }
+  }
+
+  /**
+   * Just enough of a DER reader to walk to the parts of a
+   * certificate or name that we need.
+   */
+  private static class Der {
+    final byte[] buf;
+    int pos=0;
+
+    Der(byte[] buf) {
+      this.buf=buf;
+    }
+
+    int tag() throws IOException {
+      if (pos >= buf.length) {
+        throw new IOException("Truncated DER");
+      }
+
+      return(buf[pos] & 0xFF);
+    }
+
+    /**
+     * Moves into the element at the current position,
+     * which must have this tag.
+     *
+     * @return the offset of the end of the element
+     */
+    int enter(int expected) throws IOException {
+      if (tag() != expected) {
+        throw new IOException("Unexpected DER tag " + tag());
+      }
+
+      pos++;
+
+      int length=length();
+      int end=pos + length;
+
+      if (length < 0 || end > buf.length) {
+        throw new IOException("Truncated DER");
+      }
+
+      return(end);
+    }
+
+    /**
+     * @return the whole element at the current position,
+     *         moving past it
+     */
+    byte[] read() throws IOException {
+      int start=pos;
+      int end=enter(tag());
+
+      pos=end;
+
+      return(copyOfRange(buf, start, end));
+    }
+
+    private int length() throws IOException {
+      int first=tag();
+
+      pos++;
+
+      if (first < 0x80) {
+        return(first);
+      }
+
+      int count=first & 0x7F;
+      int result=0;
+
+      if (count > 3) {
+        throw new IOException("Unsupported DER length");
+      }
+
+      for (int i=0; i < count; i++) {
+        result=(result << 8) | tag();
+        pos++;
+      }
+
+      return(result);
+    }
+
+    static int contentOffset(byte[] tlv) {
+      int first=tlv[1] & 0xFF;
+
+      return(first < 0x80 ? 2 : 2 + (first & 0x7F));
+    }
+
+    static byte[] encode(int tag, byte[] content) {
+      ByteArrayOutputStream out=new ByteArrayOutputStream(content.length + 4);
+      int length=content.length;
+
+      out.write(tag);
+
+      if (length < 0x80) {
+        out.write(length);
+      }
+      else if (length < 0x100) {
+        out.write(0x81);
+        out.write(length);
+      }
+      else if (length < 0x10000) {
+        out.write(0x82);
+        out.write(length >> 8);
+        out.write(length);
+      }
+      else {
+        out.write(0x83);
+        out.write(length >> 16);
+        out.write(length >> 8);
+        out.write(length);
+      }
+
+      out.write(content, 0, length);
+
+      return(out.toByteArray());
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package com.commonsware.cwac.security.trust;
 
 import android.content.Context;
+import android.os.SystemClock;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -25,6 +26,10 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -38,8 +43,11 @@ public class MemorizingTrustManager implements X509TrustManager {
   private KeyStore keyStore=null;
   private Options options=null;
   private X509TrustManager storeTrustManager=null;
-  private KeyStore transientKeyStore=null;
+  private final LinkedHashMap<String, TransientCert> transientCerts=
+      new LinkedHashMap<String, TransientCert>(16, 0.75f, true);
   private X509TrustManager transientTrustManager=null;
+  private boolean transientDirty=false;
+  private long nextExpiry=Long.MAX_VALUE;
 
   /**
    * @param options
@@ -67,17 +75,52 @@ public class MemorizingTrustManager implements X509TrustManager {
    * .security.cert.X509Certificate[], java.lang.String)
    */
   @Override
-  synchronized public void checkClientTrusted(X509Certificate[] chain,
-                                              String authType)
-                                                              throws CertificateException {
+  public void checkClientTrusted(X509Certificate[] chain,
+                                 String authType)
+                                                 throws CertificateException {
+    try {
+      checkClientTrustedNow(chain, authType);
+    }
+    catch (CertificateNotMemorizedException e) {
+      if (!awaitDecision(chain, authType, false)) {
+        throw e;
+      }
+
+      checkClientTrustedNow(chain, authType);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * javax.net.ssl.X509TrustManager#checkServerTrusted(java
+   * .security.cert.X509Certificate[], java.lang.String)
+   */
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain,
+                                 String authType)
+                                                 throws CertificateException {
+    try {
+      checkServerTrustedNow(chain, authType);
+    }
+    catch (CertificateNotMemorizedException e) {
+      if (!awaitDecision(chain, authType, true)) {
+        throw e;
+      }
+
+      checkServerTrustedNow(chain, authType);
+    }
+  }
+
+  synchronized private void checkClientTrustedNow(X509Certificate[] chain,
+                                                  String authType)
+                                                                  throws CertificateException {
     try {
       storeTrustManager.checkClientTrusted(chain, authType);
     }
     catch (CertificateException e) {
-      try {
-        transientTrustManager.checkClientTrusted(chain, authType);
-      }
-      catch (CertificateException e2) {
+      if (!isAllowedOnce(chain, authType, false)) {
         if (options.trustOnFirstUse && !options.store.exists()) {
           try {
             storeCert(chain);
@@ -93,25 +136,14 @@ public class MemorizingTrustManager implements X509TrustManager {
     }
   }
 
-  /*
-   * (non-Javadoc)
-   * 
-   * @see
-   * javax.net.ssl.X509TrustManager#checkServerTrusted(java
-   * .security.cert.X509Certificate[], java.lang.String)
-   */
-  @Override
-  synchronized public void checkServerTrusted(X509Certificate[] chain,
-                                              String authType)
-                                                              throws CertificateException {
+  synchronized private void checkServerTrustedNow(X509Certificate[] chain,
+                                                  String authType)
+                                                                  throws CertificateException {
     try {
       storeTrustManager.checkServerTrusted(chain, authType);
     }
     catch (CertificateException e) {
-      try {
-        transientTrustManager.checkServerTrusted(chain, authType);
-      }
-      catch (CertificateException e2) {
+      if (!isAllowedOnce(chain, authType, true)) {
         if (options.trustOnFirstUse && !options.store.exists()) {
           try {
             storeCert(chain);
@@ -127,6 +159,37 @@ public class MemorizingTrustManager implements X509TrustManager {
     }
   }
 
+  // not synchronized, as we must not hold our lock while
+  // waiting, lest storeCert() and allowOnce() be unable to
+  // record the decision
+
+  private boolean awaitDecision(final X509Certificate[] chain,
+                                final String authType,
+                                final boolean server) {
+    if (options.broker == null) {
+      return(false);
+    }
+
+    return(options.broker.await(chain, new DecisionBroker.Recheck() {
+      @Override
+      public boolean isTrusted() {
+        try {
+          if (server) {
+            checkServerTrustedNow(chain, authType);
+          }
+          else {
+            checkClientTrustedNow(chain, authType);
+          }
+
+          return(true);
+        }
+        catch (CertificateException e) {
+          return(false);
+        }
+      }
+    }));
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -155,9 +218,7 @@ public class MemorizingTrustManager implements X509TrustManager {
                                                              CertificateException,
                                                              IOException {
     for (X509Certificate cert : chain) {
-      String alias=cert.getSubjectDN().getName();
-
-      keyStore.setCertificateEntry(alias, cert);
+      keyStore.setCertificateEntry(getAlias(cert), cert);
     }
 
     initTrustManager();
@@ -166,12 +227,19 @@ public class MemorizingTrustManager implements X509TrustManager {
 
     keyStore.store(fos, options.storePassword.toCharArray());
     fos.close();
+
+    if (options.broker != null) {
+      options.broker.decide(chain, true);
+    }
   }
 
   /**
    * Records a certificate chain in the transient key store,
    * for use while this process is going on, but not saved
-   * between processes.
+   * between processes. Entries expire after the time set by
+   * Options.allowOnceTtl(), and the least-recently-used ones
+   * are evicted once there are more than
+   * Options.maxAllowedOnce() of them.
    * 
    * @param chain
    * @throws KeyStoreException
@@ -180,13 +248,31 @@ public class MemorizingTrustManager implements X509TrustManager {
   synchronized public void allowOnce(X509Certificate[] chain)
                                                              throws KeyStoreException,
                                                              NoSuchAlgorithmException {
+    long expiresAt=
+        (options.allowOnceTtlMs == Long.MAX_VALUE ? Long.MAX_VALUE
+            : SystemClock.elapsedRealtime() + options.allowOnceTtlMs);
+
     for (X509Certificate cert : chain) {
-      String alias=cert.getSubjectDN().getName();
+      transientCerts.put(getAlias(cert), new TransientCert(cert, expiresAt));
+    }
+
+    nextExpiry=Math.min(nextExpiry, expiresAt);
 
-      transientKeyStore.setCertificateEntry(alias, cert);
+    Iterator<TransientCert> lru=transientCerts.values().iterator();
+
+    while (transientCerts.size() > options.maxAllowedOnce) {
+      lru.next();
+      lru.remove();
     }
 
-    initTrustManager();
+    // rebuilt on the next check, so a burst of allowOnce()
+    // calls costs one rebuild
+
+    transientDirty=true;
+
+    if (options.broker != null) {
+      options.broker.decide(chain, true);
+    }
   }
 
   /**
@@ -216,11 +302,106 @@ public class MemorizingTrustManager implements X509TrustManager {
     initTrustManager();
   }
 
-  private void initTransientStore() throws KeyStoreException,
-                                   NoSuchAlgorithmException,
-                                   CertificateException, IOException {
-    transientKeyStore=KeyStore.getInstance(options.storeType);
-    transientKeyStore.load(null, null);
+  private void initTransientStore() {
+    transientCerts.clear();
+    transientTrustManager=null;
+    transientDirty=false;
+    nextExpiry=Long.MAX_VALUE;
+  }
+
+  private boolean isAllowedOnce(X509Certificate[] chain, String authType,
+                                boolean server) throws CertificateException {
+    X509TrustManager tm;
+
+    try {
+      tm=getTransientTrustManager();
+    }
+    catch (KeyStoreException e) {
+      throw new CertificateException(e);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new CertificateException(e);
+    }
+
+    if (tm == null) {
+      return(false);
+    }
+
+    try {
+      if (server) {
+        tm.checkServerTrusted(chain, authType);
+      }
+      else {
+        tm.checkClientTrusted(chain, authType);
+      }
+    }
+    catch (CertificateException e) {
+      return(false);
+    }
+
+    // mark the chain's entries as recently used, for LRU
+    // eviction
+
+    for (X509Certificate cert : chain) {
+      transientCerts.get(getAlias(cert));
+    }
+
+    return(true);
+  }
+
+  private X509TrustManager getTransientTrustManager()
+                                                     throws KeyStoreException,
+                                                     NoSuchAlgorithmException {
+    long now=SystemClock.elapsedRealtime();
+
+    if (now >= nextExpiry) {
+      nextExpiry=Long.MAX_VALUE;
+
+      for (Iterator<TransientCert> i=transientCerts.values().iterator(); i.hasNext();) {
+        TransientCert entry=i.next();
+
+        if (entry.expiresAt <= now) {
+          i.remove();
+          transientDirty=true;
+        }
+        else {
+          nextExpiry=Math.min(nextExpiry, entry.expiresAt);
+        }
+      }
+    }
+
+    if (transientDirty) {
+      transientTrustManager=null;
+
+      if (!transientCerts.isEmpty()) {
+        KeyStore transientKeyStore=KeyStore.getInstance(options.storeType);
+
+        try {
+          transientKeyStore.load(null, null);
+        }
+        catch (IOException e) {
+          throw new KeyStoreException(e);
+        }
+        catch (CertificateException e) {
+          throw new KeyStoreException(e);
+        }
+
+        for (Map.Entry<String, TransientCert> entry : transientCerts.entrySet()) {
+          transientKeyStore.setCertificateEntry(entry.getKey(),
+                                                entry.getValue().cert);
+        }
+
+        transientTrustManager=buildTrustManager(transientKeyStore);
+      }
+
+      transientDirty=false;
+    }
+
+    return(transientTrustManager);
+  }
+
+  private static String getAlias(X509Certificate cert) {
+    return(cert.getSubjectDN().getName());
   }
 
   private void initPersistentStore() throws KeyStoreException,
@@ -240,26 +421,32 @@ public class MemorizingTrustManager implements X509TrustManager {
 
   private void initTrustManager() throws KeyStoreException,
                                  NoSuchAlgorithmException {
+    storeTrustManager=buildTrustManager(keyStore);
+  }
+
+  private static X509TrustManager buildTrustManager(KeyStore ks)
+                                                                throws KeyStoreException,
+                                                                NoSuchAlgorithmException {
     TrustManagerFactory tmf=TrustManagerFactory.getInstance("X509");
 
-    tmf.init(keyStore);
+    tmf.init(ks);
 
     for (TrustManager t : tmf.getTrustManagers()) {
       if (t instanceof X509TrustManager) {
-        storeTrustManager=(X509TrustManager)t;
-        break;
+        return((X509TrustManager)t);
       }
     }
 
-    tmf=TrustManagerFactory.getInstance("X509");
+    return(null);
+  }
 
-    tmf.init(transientKeyStore);
+  private static class TransientCert {
+    final X509Certificate cert;
+    final long expiresAt;
 
-    for (TrustManager t : tmf.getTrustManagers()) {
-      if (t instanceof X509TrustManager) {
-        transientTrustManager=(X509TrustManager)t;
-        break;
-      }
+    TransientCert(X509Certificate cert, long expiresAt) {
+      this.cert=cert;
+      this.expiresAt=expiresAt;
     }
   }
 
@@ -270,11 +457,15 @@ public class MemorizingTrustManager implements X509TrustManager {
    * calls.
    */
   public static class Options {
+    public static final int DEFAULT_MAX_ALLOWED_ONCE=64;
     File workingDir=null;
     File store=null;
     String storePassword;
     String storeType=KeyStore.getDefaultType();
     boolean trustOnFirstUse=false;
+    DecisionBroker broker=null;
+    int maxAllowedOnce=DEFAULT_MAX_ALLOWED_ONCE;
+    long allowOnceTtlMs=Long.MAX_VALUE;
 
     /**
      * Constructor. Note that the Context is not held by the
@@ -345,5 +536,60 @@ public class MemorizingTrustManager implements X509TrustManager {
 
       return(this);
     }
+
+    /**
+     * Call this to have validations of unrecognized
+     * certificates wait for a decision, via the supplied
+     * DecisionBroker, rather than failing immediately.
+     * 
+     * @param broker
+     *          the DecisionBroker to use
+     * @return the options object for chained method calls
+     */
+    public Options decisionBroker(DecisionBroker broker) {
+      this.broker=broker;
+
+      return(this);
+    }
+
+    /**
+     * Limits how long certificates accepted via allowOnce()
+     * are trusted. By default, they are trusted for the life
+     * of the process.
+     * 
+     * @param ttl
+     *          how long each certificate is trusted
+     * @param unit
+     *          the unit of ttl
+     * @return the options object for chained method calls
+     */
+    public Options allowOnceTtl(long ttl, TimeUnit unit) {
+      if (ttl <= 0) {
+        throw new IllegalArgumentException("TTL must be positive");
+      }
+
+      allowOnceTtlMs=unit.toMillis(ttl);
+
+      return(this);
+    }
+
+    /**
+     * Limits how many certificates accepted via allowOnce()
+     * are kept. Beyond that, the least-recently-used ones
+     * are dropped. Defaults to DEFAULT_MAX_ALLOWED_ONCE.
+     * 
+     * @param max
+     *          maximum number of certificates to keep
+     * @return the options object for chained method calls
+     */
+    public Options maxAllowedOnce(int max) {
+      if (max < 1) {
+        throw new IllegalArgumentException("Maximum must be positive");
+      }
+
+      maxAllowedOnce=max;
+
+      return(this);
+    }
   }
 }
@@ -0,0 +1,79 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.trust;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Accepts a chain if any certificate in it has a public key
+ * whose SHA-256 digest (of the encoded SubjectPublicKeyInfo)
+ * is one of the pins. This does not validate the chain
+ * itself, so combine it (via and()) with something that
+ * does, such as the system default trust manager.
+ */
+class PinningTrustManager implements X509TrustManager {
+  private final byte[][] pins;
+
+  PinningTrustManager(byte[][] pins) {
+    this.pins=pins;
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain,
+                                 String authType)
+                                                 throws CertificateException {
+    checkPins(chain);
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain,
+                                 String authType)
+                                                 throws CertificateException {
+    checkPins(chain);
+  }
+
+  @Override
+  public X509Certificate[] getAcceptedIssuers() {
+    return(new X509Certificate[0]);
+  }
+
+  private void checkPins(X509Certificate[] chain)
+                                                 throws CertificateException {
+    MessageDigest md;
+
+    try {
+      md=MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new CertificateException(e);
+    }
+
+    for (X509Certificate cert : chain) {
+      byte[] digest=md.digest(cert.getPublicKey().getEncoded());
+
+      for (byte[] pin : pins) {
+        if (MessageDigest.isEqual(pin, digest)) {
+          return;
+        }
+      }
+    }
+
+    throw new CertificateException("No pinned public key in chain");
+  }
+}
@@ -0,0 +1,279 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.trust;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * A TrustManager for a policy file (see TrustPolicy) that
+ * picks up changes to that file, or to the certificate
+ * files and keystores that it references, without having
+ * to recreate the SSLContext or HTTP client that uses it.
+ *
+ * A FileObserver watches the directories holding those
+ * files. When one of them changes, the next check compiles
+ * the policy again and swaps it in for all later checks.
+ * Checks already in progress finish with the policy that
+ * they started with. If the new policy cannot be loaded
+ * (e.g., a keystore with the wrong password), the error is
+ * logged and the previous policy stays in use until the
+ * files change again.
+ *
+ * Connections (and SSL sessions) established before a
+ * change are not checked again, so they keep working.
+ *
+ * Call close() when you no longer need this, to stop
+ * watching the files.
+ */
+public class ReloadingTrustManager implements X509TrustManager {
+  private static final int CHANGES=FileObserver.CLOSE_WRITE
+      | FileObserver.MOVED_TO | FileObserver.MOVED_FROM
+      | FileObserver.DELETE;
+
+  private final Context ctxt;
+  private final File policyFile;
+  private final HashMap<File, Watcher> watchers=
+      new HashMap<File, Watcher>();
+  private volatile Snapshot snapshot;
+  private volatile int generation=0;
+  private boolean closed=false;
+
+  /**
+   * Loads the policy and starts watching its files.
+   *
+   * @param ctxt
+   *          any Context; the application Context is
+   *          retained
+   * @param policyFile
+   *          the policy file on the local file system
+   * @throws IOException
+   *           if the policy could not be read or is invalid
+   * @throws GeneralSecurityException
+   *           if a certificate or keystore could not be
+   *           loaded
+   */
+  public ReloadingTrustManager(Context ctxt, File policyFile)
+                                                             throws IOException,
+                                                             GeneralSecurityException {
+    Context app=ctxt.getApplicationContext();
+
+    this.ctxt=(app == null ? ctxt : app);
+    this.policyFile=policyFile.getAbsoluteFile();
+
+    synchronized(this) {
+      snapshot=load(generation, true);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain, String authType)
+                                                                          throws CertificateException {
+    getSnapshot().trustManager.checkClientTrusted(chain, authType);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain, String authType)
+                                                                          throws CertificateException {
+    getSnapshot().trustManager.checkServerTrusted(chain, authType);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public X509Certificate[] getAcceptedIssuers() {
+    return(getSnapshot().trustManager.getAcceptedIssuers());
+  }
+
+  /**
+   * @return the policy currently in use
+   */
+  public TrustPolicy getPolicy() {
+    return(getSnapshot().policy);
+  }
+
+  /**
+   * Loads the policy again now, rather than waiting for
+   * the next check, reporting any problem to the caller
+   * instead of logging it. On failure, the previous policy
+   * stays in use.
+   *
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  synchronized public void reload() throws IOException,
+                                   GeneralSecurityException {
+    snapshot=load(generation, false);
+  }
+
+  /**
+   * Stops watching the policy files. The last policy
+   * loaded remains in use.
+   */
+  synchronized public void close() {
+    closed=true;
+
+    for (Watcher watcher : watchers.values()) {
+      watcher.stopWatching();
+    }
+
+    watchers.clear();
+  }
+
+  private Snapshot getSnapshot() {
+    Snapshot result=snapshot;
+
+    if (result.generation != generation) {
+      synchronized(this) {
+        result=snapshot;
+
+        if (result.generation != generation) {
+          // a change during load() bumps generation again,
+          // so the next check loads once more
+
+          int current=generation;
+
+          try {
+            result=load(current, false);
+          }
+          catch (Exception e) {
+            Log.e("ReloadingTrustManager", "Exception reloading trust policy",
+                  e);
+
+            // don't retry on every check until something
+            // changes again
+
+            result=new Snapshot(current, result.policy, result.trustManager);
+          }
+
+          snapshot=result;
+        }
+      }
+    }
+
+    return(result);
+  }
+
+  // called with the lock held; reloads skip the compiled
+  // policy cache, whose timestamp and length checks can miss
+  // a file replaced within the same second
+
+  private Snapshot load(int generation, boolean useCache)
+                                                         throws IOException,
+                                                         GeneralSecurityException {
+    TrustPolicy policy=TrustPolicy.fromFile(ctxt, policyFile, useCache);
+    X509TrustManager trustManager=policy.getTrustManager();
+
+    if (!closed) {
+      watch(policy);
+    }
+
+    return(new Snapshot(generation, policy, trustManager));
+  }
+
+  // the set of files can change along with the policy, so
+  // we start watching new directories and stop watching
+  // ones that are no longer referenced
+
+  private void watch(TrustPolicy policy) {
+    HashMap<File, HashSet<String>> wanted=
+        new HashMap<File, HashSet<String>>();
+
+    for (File source : policy.getSources()) {
+      File dir=source.getAbsoluteFile().getParentFile();
+
+      if (dir != null) {
+        HashSet<String> names=wanted.get(dir);
+
+        if (names == null) {
+          names=new HashSet<String>();
+          wanted.put(dir, names);
+        }
+
+        names.add(source.getName());
+      }
+    }
+
+    for (Iterator<Map.Entry<File, Watcher>> i=
+        watchers.entrySet().iterator(); i.hasNext();) {
+      Map.Entry<File, Watcher> entry=i.next();
+
+      if (!wanted.containsKey(entry.getKey())) {
+        entry.getValue().stopWatching();
+        i.remove();
+      }
+    }
+
+    for (Map.Entry<File, HashSet<String>> entry : wanted.entrySet()) {
+      Watcher watcher=watchers.get(entry.getKey());
+
+      if (watcher == null) {
+        watcher=new Watcher(entry.getKey());
+        watchers.put(entry.getKey(), watcher);
+        watcher.names=entry.getValue();
+        watcher.startWatching();
+      }
+      else {
+        watcher.names=entry.getValue();
+      }
+    }
+  }
+
+  private class Watcher extends FileObserver {
+    volatile HashSet<String> names;
+
+    Watcher(File dir) {
+      super(dir.getAbsolutePath(), CHANGES);
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+      if (path != null && names.contains(path)) {
+        generation++;
+      }
+    }
+  }
+
+  private static class Snapshot {
+    final int generation;
+    final TrustPolicy policy;
+    final X509TrustManager trustManager;
+
+    Snapshot(int generation, TrustPolicy policy,
+             X509TrustManager trustManager) {
+      this.generation=generation;
+      this.policy=policy;
+      this.trustManager=trustManager;
+    }
+  }
+}
@@ -0,0 +1,393 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.trust;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import com.commonsware.cwac.security.SignatureUtils;
+
+/**
+ * Keeps the last few trust decisions made by
+ * CompositeTrustManager (and so by anything built by
+ * TrustManagerBuilder): the certificate, the host (if
+ * known), what each of the combined TrustManagers decided
+ * and how long it took, and the overall outcome. Call
+ * dump() when a connection fails, to log what happened.
+ *
+ * Recording a decision is a couple of atomic operations on
+ * a fixed-size ring buffer, with no locks, so the default
+ * recorder is always on. The certificate fingerprint is
+ * only calculated when entries are dumped.
+ */
+public class TrustFlightRecorder {
+  public static final int DEFAULT_CAPACITY=64;
+  private static final TrustFlightRecorder DEFAULT=
+      new TrustFlightRecorder(DEFAULT_CAPACITY);
+
+  private final AtomicReferenceArray<Entry> slots;
+  private final int mask;
+  private final AtomicLong next=new AtomicLong();
+
+  /**
+   * @return the recorder used by CompositeTrustManager
+   *         instances unless told otherwise
+   */
+  public static TrustFlightRecorder getDefault() {
+    return(DEFAULT);
+  }
+
+  /**
+   * @param capacity
+   *          the number of decisions to keep, rounded up to
+   *          a power of two
+   */
+  public TrustFlightRecorder(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+
+    int size=Integer.highestOneBit(capacity);
+
+    if (size < capacity) {
+      size<<=1;
+    }
+
+    slots=new AtomicReferenceArray<Entry>(size);
+    mask=size - 1;
+  }
+
+  /**
+   * @return the recorded decisions, oldest first
+   */
+  public List<Entry> getEntries() {
+    long end=next.get();
+    long start=Math.max(0, end - slots.length());
+    ArrayList<Entry> result=new ArrayList<Entry>((int)(end - start));
+
+    for (long seq=start; seq < end; seq++) {
+      Entry entry=slots.get((int)(seq & mask));
+
+      // skip slots not yet filled in, or already reused by
+      // a later decision
+
+      if (entry != null && entry.seq == seq) {
+        result.add(entry);
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * Writes the recorded decisions, oldest first, one per
+   * line.
+   */
+  public void dump(PrintWriter out) {
+    for (Entry entry : getEntries()) {
+      out.println(entry.toString());
+    }
+
+    out.flush();
+  }
+
+  /**
+   * @return the recorded decisions, oldest first, one per
+   *         line
+   */
+  public String dump() {
+    StringWriter result=new StringWriter();
+
+    dump(new PrintWriter(result));
+
+    return(result.toString());
+  }
+
+  void record(X509Certificate[] chain, String authType, boolean server,
+              String host, Verdicts verdicts, long nanos, Throwable failure) {
+    long seq=next.getAndIncrement();
+    Entry entry=
+        new Entry(seq, chain, authType, server, host, verdicts, nanos,
+                  failure == null ? null : failure.getClass());
+
+    slots.set((int)(seq & mask), entry);
+  }
+
+  /**
+   * One trust decision.
+   */
+  public static class Entry {
+    final long seq;
+    private final long time=System.currentTimeMillis();
+    private final X509Certificate leaf;
+    private final String authType;
+    private final boolean server;
+    private final String host;
+    private final Verdicts verdicts;
+    private final long nanos;
+    private final Class<?> failure;
+
+    Entry(long seq, X509Certificate[] chain, String authType,
+          boolean server, String host, Verdicts verdicts, long nanos,
+          Class<?> failure) {
+      this.seq=seq;
+      this.leaf=(chain == null || chain.length == 0 ? null : chain[0]);
+      this.authType=authType;
+      this.server=server;
+      this.host=host;
+      this.verdicts=verdicts;
+      this.nanos=nanos;
+      this.failure=failure;
+    }
+
+    /**
+     * @return when the decision was made, in milliseconds
+     *         since the epoch
+     */
+    public long getTime() {
+      return(time);
+    }
+
+    /**
+     * @return the SHA-256 fingerprint of the first
+     *         certificate in the chain, or null if there was
+     *         none
+     */
+    public String getFingerprint() {
+      if (leaf == null) {
+        return(null);
+      }
+
+      try {
+        MessageDigest md=MessageDigest.getInstance("SHA-256");
+
+        return(SignatureUtils.toHexStringWithColons(md.digest(leaf.getEncoded())));
+      }
+      catch (NoSuchAlgorithmException e) {
+        return(null);
+      }
+      catch (CertificateEncodingException e) {
+        return(null);
+      }
+    }
+
+    /**
+     * @return the subject of the first certificate in the
+     *         chain, or null if there was none
+     */
+    public String getSubject() {
+      return(leaf == null ? null : leaf.getSubjectX500Principal().getName());
+    }
+
+    public String getAuthType() {
+      return(authType);
+    }
+
+    /**
+     * @return true for a server certificate check, false
+     *         for a client one
+     */
+    public boolean isServer() {
+      return(server);
+    }
+
+    /**
+     * @return the host being connected to, or null if it
+     *         was not known
+     */
+    public String getHost() {
+      return(host);
+    }
+
+    /**
+     * @return the number of TrustManagers consulted,
+     *         including those within nested
+     *         CompositeTrustManagers
+     */
+    public int getVerdictCount() {
+      return(verdicts.count);
+    }
+
+    /**
+     * @return how deeply the i-th TrustManager consulted is
+     *         nested: 0 for those combined by the
+     *         CompositeTrustManager that recorded the
+     *         decision, 1 for those combined by one of them,
+     *         and so on; each follows the TrustManager that
+     *         it is nested in
+     */
+    public int getManagerDepth(int i) {
+      return(verdicts.depths[i]);
+    }
+
+    /**
+     * @return the class of the i-th TrustManager consulted
+     */
+    public String getManager(int i) {
+      return(verdicts.managers[i].getName());
+    }
+
+    /**
+     * @return the class of the exception thrown by the i-th
+     *         TrustManager consulted, or null if it accepted
+     *         the certificate
+     */
+    public String getManagerFailure(int i) {
+      Class<?> result=verdicts.failures[i];
+
+      return(result == null ? null : result.getName());
+    }
+
+    /**
+     * @return the time the i-th TrustManager took, in
+     *         nanoseconds
+     */
+    public long getManagerNanos(int i) {
+      return(verdicts.nanos[i]);
+    }
+
+    /**
+     * @return the time the whole decision took, in
+     *         nanoseconds
+     */
+    public long getNanos() {
+      return(nanos);
+    }
+
+    /**
+     * @return true if the certificate was accepted
+     */
+    public boolean isAccepted() {
+      return(failure == null);
+    }
+
+    /**
+     * @return the class of the exception thrown, or null if
+     *         the certificate was accepted
+     */
+    public String getFailure() {
+      return(failure == null ? null : failure.getName());
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder buf=new StringBuilder();
+
+      buf.append(String.format("%tF %<tT.%<tL", new Date(time)));
+      buf.append(server ? " server " : " client ");
+      buf.append(host == null ? "?" : host);
+      buf.append(' ').append(authType);
+      buf.append(' ').append(getSubject());
+      buf.append(' ').append(getFingerprint());
+      buf.append(isAccepted() ? " accepted" : " rejected (" + getFailure()
+          + ")");
+      buf.append(' ').append(nanos / 1000).append("us [");
+
+      for (int i=0; i < verdicts.count; i++) {
+        if (i > 0) {
+          buf.append(", ");
+        }
+
+        for (int depth=0; depth < verdicts.depths[i]; depth++) {
+          buf.append('>');
+        }
+
+        buf.append(verdicts.managers[i].getSimpleName());
+        buf.append('=');
+
+        if (verdicts.failures[i] == null) {
+          buf.append("ok");
+        }
+        else {
+          buf.append(verdicts.failures[i].getSimpleName());
+        }
+
+        buf.append(' ').append(verdicts.nanos[i] / 1000).append("us");
+      }
+
+      return(buf.append(']').toString());
+    }
+  }
+
+  /**
+   * What each TrustManager in a CompositeTrustManager (and
+   * in any CompositeTrustManagers nested within it)
+   * decided, filled in as the checks run, on the thread
+   * running them. A TrustManager's slot is taken when its
+   * check starts, so nested verdicts follow the one for the
+   * TrustManager that they are nested in.
+   */
+  static class Verdicts {
+    Class<?>[] managers;
+    Class<?>[] failures;
+    long[] nanos;
+    int[] depths;
+    int count=0;
+    private int depth=0;
+
+    Verdicts(int size) {
+      size=Math.max(size, 1);
+      managers=new Class<?>[size];
+      failures=new Class<?>[size];
+      nanos=new long[size];
+      depths=new int[size];
+    }
+
+    int start(Object manager) {
+      if (count == managers.length) {
+        grow();
+      }
+
+      managers[count]=manager.getClass();
+      depths[count]=depth++;
+
+      return(count++);
+    }
+
+    void end(int slot, long started, Throwable failure) {
+      depth--;
+      nanos[slot]=System.nanoTime() - started;
+      failures[slot]=(failure == null ? null : failure.getClass());
+    }
+
+    // System.arraycopy() rather than Arrays.copyOf(), which
+    // is API 9
+
+    private void grow() {
+      int size=managers.length * 2;
+      Class<?>[] newManagers=new Class<?>[size];
+      Class<?>[] newFailures=new Class<?>[size];
+      long[] newNanos=new long[size];
+      int[] newDepths=new int[size];
+
+      System.arraycopy(managers, 0, newManagers, 0, count);
+      System.arraycopy(failures, 0, newFailures, 0, count);
+      System.arraycopy(nanos, 0, newNanos, 0, count);
+      System.arraycopy(depths, 0, newDepths, 0, count);
+      managers=newManagers;
+      failures=newFailures;
+      nanos=newNanos;
+      depths=newDepths;
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package com.commonsware.cwac.security.trust;
 
 import android.content.Context;
+import android.os.Build;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -23,10 +24,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -49,10 +55,19 @@ import javax.net.ssl.X509TrustManager;
 public class TrustManagerBuilder {
   private static final String X509="X.509";
   private static final String BKS="BKS";
+  private static final String TLS="TLS";
 
   private CompositeTrustManager mgr=CompositeTrustManager.matchAll();
   private Context ctxt=null;
   private MemorizingTrustManager memo=null;
+  private String[] protocols={ TLS };
+  private int sessionCacheSize=-1;
+  private int sessionTimeout=-1;
+  private SSLContext sslContext=null;
+  private TrustManager sslContextManager=null;
+  private CachingHostnameVerifier verifier=null;
+  private HostTrie<TrustManagerBuilder> hosts=null;
+  private TrustManager router=null;
 
   /**
    * Empty constructor. Use this only if you plan on
@@ -85,10 +100,56 @@ public class TrustManagerBuilder {
 
   /**
    * @return the TrustManager representing the particular
-   *         rules you want to apply
+   *         rules you want to apply (if you used forHost(),
+   *         a HostRoutingTrustManager, wrapped in an
+   *         X509ExtendedTrustManager so it learns the host of
+   *         each handshake)
+   * @throws IllegalStateException
+   *           if you used forHost() on a device older than
+   *           API Level 24, which cannot tell the
+   *           TrustManager the host (see buildHostRouter())
    */
-  public TrustManager build() {
-    return(mgr);
+  synchronized public TrustManager build() {
+    if (hosts == null) {
+      return(mgr);
+    }
+
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+      throw new IllegalStateException(
+                                      "forHost() requires API Level 24 or higher;"
+                                          + " use buildHostRouter() and supply the host yourself");
+    }
+
+    // the router is only ever an ExtendedHostRoutingTrustManager,
+    // but that class cannot be loaded before API Level 24, so
+    // the field is a plain TrustManager
+
+    if (router == null
+        || ((ExtendedHostRoutingTrustManager)router).getRouter().getFallback() != mgr) {
+      router=
+          new ExtendedHostRoutingTrustManager(new HostRoutingTrustManager(mgr,
+                                                                          hosts));
+    }
+
+    return(router);
+  }
+
+  /**
+   * For use with forHost() where the platform cannot tell
+   * the TrustManager the host (before API Level 24), or
+   * where you validate chains yourself: returns the
+   * HostRoutingTrustManager for this builder's rules, whose
+   * three-parameter checkServerTrusted() takes the host.
+   * Without a host, a chain is only accepted if this
+   * builder's rules and those of every forHost() builder
+   * all accept it.
+   *
+   * @return the HostRoutingTrustManager for these rules
+   */
+  public HostRoutingTrustManager buildHostRouter() {
+    return(new HostRoutingTrustManager(mgr,
+                                       hosts == null ? new HostTrie<TrustManagerBuilder>()
+                                           : hosts));
   }
 
   /**
@@ -99,6 +160,191 @@ public class TrustManagerBuilder {
     return(new TrustManager[] { build() });
   }
 
+  /**
+   * Returns an SSLContext initialized with the TrustManager
+   * from build(). The SSLContext is created once and cached
+   * by this builder, so repeated calls hand back the same
+   * instance, and HTTPS connections made through it can
+   * resume earlier SSL sessions rather than perform a full
+   * handshake each time. The cached SSLContext is replaced
+   * if you change the configuration of the builder after
+   * calling this method.
+   * 
+   * @return the SSLContext for this builder's rules
+   * @throws NoSuchAlgorithmException
+   * @throws KeyManagementException
+   */
+  synchronized public SSLContext buildSSLContext()
+                                                  throws NoSuchAlgorithmException,
+                                                  KeyManagementException {
+    TrustManager tm=build();
+
+    if (sslContext == null || sslContextManager != tm) {
+      SSLContext ssl=null;
+      NoSuchAlgorithmException first=null;
+
+      for (String protocol : protocols) {
+        try {
+          ssl=SSLContext.getInstance(protocol);
+          break;
+        }
+        catch (NoSuchAlgorithmException e) {
+          if (first == null) {
+            first=e;
+          }
+        }
+      }
+
+      if (ssl == null) {
+        throw first;
+      }
+
+      ssl.init(null, new TrustManager[] { tm }, null);
+
+      SSLSessionContext sessions=ssl.getClientSessionContext();
+
+      if (sessions != null) {
+        if (sessionCacheSize >= 0) {
+          sessions.setSessionCacheSize(sessionCacheSize);
+        }
+
+        if (sessionTimeout >= 0) {
+          sessions.setSessionTimeout(sessionTimeout);
+        }
+      }
+
+      sslContext=ssl;
+      sslContextManager=tm;
+    }
+
+    return(sslContext);
+  }
+
+  /**
+   * @return the SSLSocketFactory from the SSLContext
+   *         returned by buildSSLContext(), for use with
+   *         HttpsURLConnection, OkHttp, and kin
+   * @throws NoSuchAlgorithmException
+   * @throws KeyManagementException
+   */
+  synchronized public SSLSocketFactory buildSocketFactory()
+                                                           throws NoSuchAlgorithmException,
+                                                           KeyManagementException {
+    return(buildSSLContext().getSocketFactory());
+  }
+
+  /**
+   * Returns a HostnameVerifier to use alongside the
+   * SSLSocketFactory from buildSocketFactory() (e.g., via
+   * setHostnameVerifier() on HttpsURLConnection). It parses
+   * the subject alternative names of each server
+   * certificate once and caches the result, so verifying a
+   * host against a certificate seen before is cheap. The
+   * same instance is returned on each call.
+   * 
+   * @return the HostnameVerifier for this builder
+   */
+  synchronized public HostnameVerifier buildHostnameVerifier() {
+    if (verifier == null) {
+      verifier=new CachingHostnameVerifier();
+    }
+
+    return(verifier);
+  }
+
+  /**
+   * Indicates the SSLContext protocols to try, in order of
+   * preference, when buildSSLContext() creates its
+   * SSLContext. The first protocol supported by the device
+   * is used. The default is "TLS".
+   * 
+   * @param protocols
+   *          protocol names, such as "TLSv1.2" or "TLS"
+   * @return the builder for chained calls
+   */
+  synchronized public TrustManagerBuilder protocols(String... protocols) {
+    if (protocols == null || protocols.length == 0) {
+      throw new IllegalArgumentException(
+                                         "Must supply at least one protocol");
+    }
+
+    this.protocols=protocols.clone();
+    sslContext=null;
+
+    return(this);
+  }
+
+  /**
+   * Configures the client-side SSL session cache of the
+   * SSLContext returned by buildSSLContext(). Sessions held
+   * in this cache can be resumed by later connections to
+   * the same server, skipping the full handshake.
+   * 
+   * @param size
+   *          maximum number of cached sessions (0 for no
+   *          limit)
+   * @param timeoutSeconds
+   *          how long a cached session may be resumed, in
+   *          seconds (0 for no limit)
+   * @return the builder for chained calls
+   */
+  synchronized public TrustManagerBuilder sessionCache(int size,
+                                                       int timeoutSeconds) {
+    if (size < 0 || timeoutSeconds < 0) {
+      throw new IllegalArgumentException(
+                                         "Session cache size and timeout cannot be negative");
+    }
+
+    sessionCacheSize=size;
+    sessionTimeout=timeoutSeconds;
+    sslContext=null;
+
+    return(this);
+  }
+
+  /**
+   * Sets up separate rules for servers whose host matches
+   * the pattern. Connections to those hosts are validated
+   * using only those rules, not the ones configured on this
+   * builder, which apply to all other hosts. The pattern is
+   * either a hostname ("api.example.com") or a wildcard
+   * ("*.example.com", matching any host within that
+   * domain). If several patterns match, an exact hostname
+   * wins over a wildcard, and the longest wildcard wins
+   * over shorter ones.
+   * 
+   * The host is taken from the SSL handshake, which
+   * requires API Level 24 or higher; on older devices,
+   * build() (and the methods that use it) throw an
+   * IllegalStateException once forHost() has been used,
+   * rather than silently requiring every rule set to accept
+   * each certificate (which, for a mix such as the system
+   * certificates for most hosts and a self-signed one for
+   * internal hosts, would reject every host). Use
+   * buildHostRouter() there, and supply the host yourself.
+   * If a handshake does not reveal the host, the
+   * certificate must be accepted by the rules of this
+   * builder and of every forHost() builder.
+   * 
+   * @param pattern
+   *          hostname or wildcard pattern
+   * @return a new TrustManagerBuilder, sharing this one's
+   *         Context, for configuring the rules for those
+   *         hosts (not this builder!)
+   */
+  synchronized public TrustManagerBuilder forHost(String pattern) {
+    TrustManagerBuilder result=new TrustManagerBuilder(ctxt);
+
+    if (hosts == null) {
+      hosts=new HostTrie<TrustManagerBuilder>();
+    }
+
+    hosts.put(pattern, result);
+    router=null;
+
+    return(result);
+  }
+
   /**
    * Any subsequent configuration of this builder, until the
    * next and() call (or build()/buildArray()), will be
@@ -355,6 +601,76 @@ public class TrustManagerBuilder {
     return(this);
   }
 
+  /**
+   * Allow the certificate authorities (CAs) in an
+   * OpenSSL-style hashed directory, where each file is named
+   * for the hash of its CA's subject (e.g., as prepared by
+   * "openssl rehash"). CAs are only loaded from the
+   * directory as certificates issued by them are checked.
+   * 
+   * @param dir
+   *          the directory on the local file system
+   * @return the builder for chained calls
+   */
+  public TrustManagerBuilder allowCADirectory(File dir) {
+    mgr.add(LazyCATrustManager.forDirectory(dir));
+
+    return(this);
+  }
+
+  /**
+   * Allow the certificate authorities (CAs) in a bundle of
+   * PEM-encoded certificates. The bundle is not read until
+   * the first certificate check, and only the CAs needed
+   * for the checks are parsed.
+   * 
+   * @param bundle
+   *          the bundle file on the local file system
+   * @return the builder for chained calls
+   */
+  public TrustManagerBuilder allowCABundle(File bundle) {
+    mgr.add(LazyCATrustManager.forBundle(bundle));
+
+    return(this);
+  }
+
+  /**
+   * Allow the certificate authorities (CAs) in a bundle of
+   * PEM-encoded certificates. The bundle is not read until
+   * the first certificate check, and only the CAs needed
+   * for the checks are parsed.
+   * 
+   * @param rawResourceId
+   *          raw resource ID for the bundle
+   * @return the builder for chained calls
+   */
+  public TrustManagerBuilder allowCABundle(int rawResourceId) {
+    checkContext();
+
+    mgr.add(LazyCATrustManager.forBundle(ctxt.getResources(), rawResourceId));
+
+    return(this);
+  }
+
+  /**
+   * Allow the certificate authorities (CAs) in a bundle of
+   * PEM-encoded certificates. The bundle is not read until
+   * the first certificate check, and only the CAs needed
+   * for the checks are parsed.
+   * 
+   * @param assetPath
+   *          path within assets/ of your project where the
+   *          bundle resides
+   * @return the builder for chained calls
+   */
+  public TrustManagerBuilder allowCABundle(String assetPath) {
+    checkContext();
+
+    mgr.add(LazyCATrustManager.forBundle(ctxt.getAssets(), assetPath));
+
+    return(this);
+  }
+
   /**
    * Support a specific self-signed certificate. The
    * password is a char[] to allow you to wipe out that
@@ -567,6 +883,79 @@ public class TrustManagerBuilder {
     return(this);
   }
 
+  /**
+   * Adds the trust rules described by a policy file in
+   * assets/. See TrustPolicy for the file format. The
+   * compiled policy is cached, so later uses of the same
+   * policy file skip parsing it.
+   * 
+   * @param assetPath
+   *          path within assets/ of the policy file
+   * @return the builder for chained calls
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public TrustManagerBuilder usePolicy(String assetPath)
+                                                        throws IOException,
+                                                        GeneralSecurityException {
+    checkContext();
+
+    mgr.add(TrustPolicy.fromAsset(ctxt, assetPath).getTrustManager());
+
+    return(this);
+  }
+
+  /**
+   * Adds the trust rules described by a policy file. See
+   * TrustPolicy for the file format. The compiled policy is
+   * cached, so later uses of the same policy file skip
+   * parsing it.
+   * 
+   * @param policy
+   *          the policy file on the local file system
+   * @return the builder for chained calls
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public TrustManagerBuilder usePolicy(File policy)
+                                                   throws IOException,
+                                                   GeneralSecurityException {
+    checkContext();
+
+    mgr.add(TrustPolicy.fromFile(ctxt, policy).getTrustManager());
+
+    return(this);
+  }
+
+  /**
+   * Adds the trust rules described by a policy file,
+   * optionally watching that file, and the files that it
+   * references, for changes. See ReloadingTrustManager for
+   * how changes are applied.
+   * 
+   * @param policy
+   *          the policy file on the local file system
+   * @param reloadOnChange
+   *          true to pick up changes to the policy files
+   *          without rebuilding
+   * @return the builder for chained calls
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public TrustManagerBuilder usePolicy(File policy, boolean reloadOnChange)
+                                                                           throws IOException,
+                                                                           GeneralSecurityException {
+    if (!reloadOnChange) {
+      return(usePolicy(policy));
+    }
+
+    checkContext();
+
+    mgr.add(new ReloadingTrustManager(ctxt, policy));
+
+    return(this);
+  }
+
   /**
    * Enables certificate memorization for this builder. All
    * SSL certificates need to be approved by the user before
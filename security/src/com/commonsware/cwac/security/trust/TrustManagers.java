@@ -23,6 +23,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.util.Collection;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
@@ -59,20 +60,27 @@ public class TrustManagers {
                                                                        IOException,
                                                                        NoSuchAlgorithmException,
                                                                        KeyStoreException {
-    Certificate caCert;
+    Collection<? extends Certificate> caCerts;
     CertificateFactory cf=CertificateFactory.getInstance(certType);
 
+    // the stream may hold several certificates (e.g., a PEM
+    // bundle), and we trust all of them
+
     try {
-      caCert=cf.generateCertificate(in);
+      caCerts=cf.generateCertificates(in);
     }
     finally {
       in.close();
     }
 
     KeyStore store=KeyStore.getInstance(KeyStore.getDefaultType());
+    int i=0;
 
     store.load(null, null);
-    store.setCertificateEntry("ca", caCert);
+
+    for (Certificate caCert : caCerts) {
+      store.setCertificateEntry("ca" + i++, caCert);
+    }
 
     TrustManagerFactory tmf=
         TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
@@ -0,0 +1,829 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+  
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.security.trust;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import com.commonsware.cwac.security.SignatureUtils;
+
+/**
+ * A trust policy, loaded from a JSON file that describes
+ * the certificate sources to trust and how to combine them.
+ * The file holds one policy element, which is a JSON object
+ * with one of these forms:
+ *
+ * {"all": [ elements ]} - all of the elements must accept
+ * the chain, as with TrustManagerBuilder.and()
+ *
+ * {"any": [ elements ]} - at least one element must accept
+ * the chain, as with TrustManagerBuilder.or()
+ *
+ * {"default": true} - the system default trust managers
+ *
+ * {"denyAll": true} - rejects everything
+ *
+ * {"ca": "path", "type": "X.509"} - certificate authority
+ * certificate(s); type is optional
+ *
+ * {"selfSigned": "path", "password": "...", "format":
+ * "BKS"} - the trusted certificates in a keystore; format
+ * is optional
+ *
+ * {"pins": [ "hex", ... ]} - accepts chains with a public
+ * key whose SHA-256 digest (of its SubjectPublicKeyInfo) is
+ * listed; pins do not validate the chain, so they must be
+ * combined with something that does, in an "all" element,
+ * such as {"all": [{"default": true}, {"pins": [...]}]}
+ *
+ * A policy that could accept a chain without validating it
+ * (e.g., a "pins" element on its own or as one choice in an
+ * "any" element) is rejected.
+ *
+ * Paths are relative to assets/ for a policy loaded from
+ * assets, or to the policy file's directory for one loaded
+ * from a file.
+ *
+ * The policy is compiled into an immutable plan, with the
+ * referenced certificates already extracted, and the plan
+ * is cached on disk, keyed by the SHA-256 hash of the
+ * policy file. Later loads of the same policy skip parsing
+ * the JSON, opening the keystores, and so on, unless one of
+ * the files that the plan came from has changed since.
+ */
+public class TrustPolicy {
+  private static final String X509="X.509";
+  private static final String BKS="BKS";
+  private static final String SHA256="SHA-256";
+  private static final String CACHE_DIR="cwac-trust-policy";
+  private static final int MAGIC=0x43575450; // "CWTP"
+  private static final int VERSION=1;
+  private static final byte ALL=1;
+  private static final byte ANY=2;
+  private static final byte DEFAULT=3;
+  private static final byte DENY=4;
+  private static final byte ANCHORS=5;
+  private static final byte PINS=6;
+  private static final int PIN_LENGTH=32;
+
+  // sanity limits for reading compiled policies, so a
+  // corrupt cache file is rejected rather than causing a
+  // huge allocation or deep recursion
+
+  private static final int MAX_COUNT=4096;
+  private static final int MAX_BYTES=1024 * 1024;
+  private static final int MAX_DEPTH=32;
+
+  private final Node root;
+  private final List<File> sources;
+  private X509TrustManager trustManager=null;
+
+  /**
+   * Loads a policy from assets/.
+   *
+   * @param ctxt
+   *          a Context, for assets and the cache directory
+   * @param assetPath
+   *          path within assets/ of the policy file
+   * @return the compiled policy
+   * @throws IOException
+   *           if the policy could not be read or is invalid
+   * @throws GeneralSecurityException
+   *           if a certificate or keystore could not be
+   *           loaded
+   */
+  public static TrustPolicy fromAsset(Context ctxt, String assetPath)
+                                                                     throws IOException,
+                                                                     GeneralSecurityException {
+    return(load(ctxt, new AssetOrigin(ctxt, assetPath), true));
+  }
+
+  /**
+   * Loads a policy from a file.
+   *
+   * @param ctxt
+   *          a Context, for the cache directory
+   * @param policy
+   *          the policy file
+   * @return the compiled policy
+   * @throws IOException
+   *           if the policy could not be read or is invalid
+   * @throws GeneralSecurityException
+   *           if a certificate or keystore could not be
+   *           loaded
+   */
+  public static TrustPolicy fromFile(Context ctxt, File policy)
+                                                               throws IOException,
+                                                               GeneralSecurityException {
+    return(load(ctxt, new FileOrigin(policy), true));
+  }
+
+  /**
+   * Same as fromFile(Context, File), but optionally ignoring
+   * any cached plan. The cache notices changes by timestamp
+   * and length, and a file replaced by another of the same
+   * length within the timestamp granularity (a second, on
+   * some file systems) looks unchanged, so a caller that
+   * knows that files changed compiles the policy afresh.
+   * The new plan is still cached.
+   */
+  static TrustPolicy fromFile(Context ctxt, File policy, boolean useCache)
+                                                                          throws IOException,
+                                                                          GeneralSecurityException {
+    return(load(ctxt, new FileOrigin(policy), useCache));
+  }
+
+  private TrustPolicy(Node root, List<File> sources) {
+    this.root=root;
+    this.sources=Collections.unmodifiableList(sources);
+  }
+
+  /**
+   * @return the files that this policy was compiled from:
+   *         the policy file itself and those it references
+   *         (or, for a policy in assets, the APK)
+   */
+  public List<File> getSources() {
+    return(sources);
+  }
+
+  /**
+   * @return the TrustManager implementing this policy,
+   *         created on the first call and reused thereafter
+   * @throws GeneralSecurityException
+   */
+  synchronized public X509TrustManager getTrustManager()
+                                                        throws GeneralSecurityException {
+    if (trustManager == null) {
+      trustManager=root.build();
+    }
+
+    return(trustManager);
+  }
+
+  private static TrustPolicy load(Context ctxt, Origin origin,
+                                  boolean useCache) throws IOException,
+                                                   GeneralSecurityException {
+    byte[] raw=readFully(origin.openPolicy());
+    MessageDigest md=MessageDigest.getInstance(SHA256);
+
+    md.update(origin.getIdentity().getBytes("UTF-8"));
+
+    String prefix=toHex(md.digest()).substring(0, 16);
+
+    md.update(origin.getIdentity().getBytes("UTF-8"));
+    md.update(raw);
+
+    File dir=new File(ctxt.getCacheDir(), CACHE_DIR);
+    File cached=new File(dir, prefix + "-" + toHex(md.digest()));
+    TrustPolicy result=null;
+
+    if (useCache && cached.exists()) {
+      try {
+        result=read(cached);
+      }
+      catch (IOException e) {
+        Log.w("TrustPolicy", "Exception reading compiled policy", e);
+      }
+      catch (RuntimeException e) {
+        Log.w("TrustPolicy", "Exception reading compiled policy", e);
+      }
+    }
+
+    if (result == null) {
+      try {
+        result=compile(origin, new JSONObject(new String(raw, "UTF-8")));
+      }
+      catch (JSONException e) {
+        IOException ioe=
+            new IOException("Invalid trust policy: " + e.getMessage());
+
+        ioe.initCause(e); // IOException(String, Throwable) is API 9
+        throw ioe;
+      }
+
+      try {
+        write(result, dir, cached, prefix);
+      }
+      catch (IOException e) {
+        // we can live without the cache
+        Log.w("TrustPolicy", "Exception caching compiled policy", e);
+      }
+    }
+
+    return(result);
+  }
+
+  private static TrustPolicy compile(Origin origin, JSONObject json)
+                                                                    throws JSONException,
+                                                                    IOException,
+                                                                    GeneralSecurityException {
+    LinkedHashSet<File> sources=new LinkedHashSet<File>();
+
+    sources.add(origin.getSource(null));
+
+    Node root=compile(origin, json, sources);
+
+    // a pinned certificate is public, so an attacker could
+    // add it to their own chain unless the chain is also
+    // validated
+
+    if (!root.validates()) {
+      throw new JSONException("\"pins\" must be in an \"all\" element"
+          + " with something that validates the chain");
+    }
+
+    return(new TrustPolicy(root, new ArrayList<File>(sources)));
+  }
+
+  private static Node compile(Origin origin, JSONObject json,
+                              LinkedHashSet<File> sources)
+                                                          throws JSONException,
+                                                          IOException,
+                                                          GeneralSecurityException {
+    if (json.has("all") || json.has("any")) {
+      boolean all=json.has("all");
+      JSONArray elements=json.getJSONArray(all ? "all" : "any");
+      Node[] children=new Node[elements.length()];
+
+      // an empty group would accept everything
+
+      if (children.length == 0) {
+        throw new JSONException("Empty \"" + (all ? "all" : "any")
+            + "\" element");
+      }
+
+      for (int i=0; i < children.length; i++) {
+        children[i]=compile(origin, elements.getJSONObject(i), sources);
+      }
+
+      return(new Group(all, children));
+    }
+    else if (json.has("default")) {
+      if (!json.getBoolean("default")) {
+        throw new JSONException("\"default\" must be true");
+      }
+
+      return(new Default());
+    }
+    else if (json.has("denyAll")) {
+      if (!json.getBoolean("denyAll")) {
+        throw new JSONException("\"denyAll\" must be true");
+      }
+
+      return(new Deny());
+    }
+    else if (json.has("ca")) {
+      String path=json.getString("ca");
+      String certType=json.optString("type", X509);
+      CertificateFactory cf=CertificateFactory.getInstance(certType);
+      ArrayList<byte[]> certs=new ArrayList<byte[]>();
+      InputStream in=new BufferedInputStream(origin.open(path));
+
+      try {
+        for (Certificate cert : cf.generateCertificates(in)) {
+          certs.add(cert.getEncoded());
+        }
+      }
+      finally {
+        in.close();
+      }
+
+      sources.add(origin.getSource(path));
+
+      return(new Anchors(certType, certs.toArray(new byte[certs.size()][])));
+    }
+    else if (json.has("selfSigned")) {
+      String path=json.getString("selfSigned");
+      KeyStore store=KeyStore.getInstance(json.optString("format", BKS));
+      InputStream in=new BufferedInputStream(origin.open(path));
+
+      try {
+        store.load(in, json.getString("password").toCharArray());
+      }
+      finally {
+        in.close();
+      }
+
+      ArrayList<byte[]> certs=new ArrayList<byte[]>();
+
+      for (Enumeration<String> aliases=store.aliases(); aliases.hasMoreElements();) {
+        String alias=aliases.nextElement();
+
+        if (store.isCertificateEntry(alias)) {
+          certs.add(store.getCertificate(alias).getEncoded());
+        }
+      }
+
+      sources.add(origin.getSource(path));
+
+      return(new Anchors(X509, certs.toArray(new byte[certs.size()][])));
+    }
+    else if (json.has("pins")) {
+      JSONArray hex=json.getJSONArray("pins");
+      byte[][] pins=new byte[hex.length()][];
+
+      for (int i=0; i < pins.length; i++) {
+        try {
+          pins[i]=SignatureUtils.fromHexString(hex.getString(i));
+        }
+        catch (IllegalArgumentException e) {
+          throw new JSONException("Invalid pin: " + hex.getString(i));
+        }
+
+        if (pins[i] == null || pins[i].length != PIN_LENGTH) {
+          throw new JSONException("Pin is not a SHA-256 hash: "
+              + hex.getString(i));
+        }
+      }
+
+      return(new Pins(pins));
+    }
+
+    throw new JSONException("Unrecognized trust policy element");
+  }
+
+  private static TrustPolicy read(File cached) throws IOException {
+    DataInputStream in=
+        new DataInputStream(new BufferedInputStream(new FileInputStream(cached)));
+
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return(null);
+      }
+
+      int count=readCount(in);
+      ArrayList<File> sources=new ArrayList<File>(count);
+
+      for (int i=0; i < count; i++) {
+        File source=new File(in.readUTF());
+
+        if (source.lastModified() != in.readLong()
+            || source.length() != in.readLong()) {
+          return(null);
+        }
+
+        sources.add(source);
+      }
+
+      Node root=readNode(in, 0);
+
+      if (!root.validates()) {
+        throw new IOException("Corrupt compiled policy");
+      }
+
+      return(new TrustPolicy(root, sources));
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static Node readNode(DataInputStream in, int depth)
+                                                             throws IOException {
+    if (depth > MAX_DEPTH) {
+      throw new IOException("Corrupt compiled policy");
+    }
+
+    byte type=in.readByte();
+
+    switch (type) {
+      case ALL:
+      case ANY:
+        Node[] children=new Node[readCount(in)];
+
+        if (children.length == 0) {
+          throw new IOException("Corrupt compiled policy");
+        }
+
+        for (int i=0; i < children.length; i++) {
+          children[i]=readNode(in, depth + 1);
+        }
+
+        return(new Group(type == ALL, children));
+
+      case DEFAULT:
+        return(new Default());
+
+      case DENY:
+        return(new Deny());
+
+      case ANCHORS:
+        String certType=in.readUTF();
+
+        return(new Anchors(certType, readByteArrays(in)));
+
+      case PINS:
+        return(new Pins(readByteArrays(in)));
+    }
+
+    throw new IOException("Corrupt compiled policy");
+  }
+
+  private static void write(TrustPolicy policy, File dir, File cached,
+                            String prefix) throws IOException {
+    dir.mkdirs();
+
+    // older compilations of the same policy are now stale
+
+    File[] existing=dir.listFiles();
+
+    if (existing != null) {
+      for (File f : existing) {
+        if (f.getName().startsWith(prefix)) {
+          f.delete();
+        }
+      }
+    }
+
+    File tmp=new File(dir, cached.getName() + ".tmp");
+    DataOutputStream out=
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(policy.sources.size());
+
+      for (File source : policy.sources) {
+        out.writeUTF(source.getAbsolutePath());
+        out.writeLong(source.lastModified());
+        out.writeLong(source.length());
+      }
+
+      policy.root.write(out);
+    }
+    finally {
+      out.close();
+    }
+
+    if (!tmp.renameTo(cached)) {
+      tmp.delete();
+    }
+  }
+
+  private static byte[][] readByteArrays(DataInputStream in)
+                                                            throws IOException {
+    byte[][] result=new byte[readCount(in)][];
+
+    for (int i=0; i < result.length; i++) {
+      int length=in.readInt();
+
+      if (length < 0 || length > MAX_BYTES) {
+        throw new IOException("Corrupt compiled policy");
+      }
+
+      result[i]=new byte[length];
+      in.readFully(result[i]);
+    }
+
+    return(result);
+  }
+
+  private static int readCount(DataInputStream in) throws IOException {
+    int result=in.readInt();
+
+    if (result < 0 || result > MAX_COUNT) {
+      throw new IOException("Corrupt compiled policy");
+    }
+
+    return(result);
+  }
+
+  private static void writeByteArrays(DataOutputStream out, byte[][] arrays)
+                                                                            throws IOException {
+    out.writeInt(arrays.length);
+
+    for (byte[] array : arrays) {
+      out.writeInt(array.length);
+      out.write(array);
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    byte[] buf=new byte[8192];
+    int len;
+
+    try {
+      while ((len=in.read(buf)) > 0) {
+        out.write(buf, 0, len);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    return(out.toByteArray());
+  }
+
+  private static String toHex(byte[] bytes) {
+    return(SignatureUtils.toHexStringWithColons(bytes).replace(":", ""));
+  }
+
+  private static X509TrustManager firstX509(TrustManager[] mgrs) {
+    for (TrustManager tm : mgrs) {
+      if (tm instanceof X509TrustManager) {
+        return((X509TrustManager)tm);
+      }
+    }
+
+    return(new DenyAllTrustManager());
+  }
+
+  private abstract static class Node {
+    abstract X509TrustManager build() throws GeneralSecurityException;
+
+    /**
+     * @return true if every chain this accepts has been
+     *         validated (or, for Deny, if it accepts nothing)
+     */
+    abstract boolean validates();
+
+    abstract void write(DataOutputStream out) throws IOException;
+  }
+
+  private static class Group extends Node {
+    final boolean all;
+    final Node[] children;
+
+    Group(boolean all, Node[] children) {
+      this.all=all;
+      this.children=children;
+    }
+
+    @Override
+    X509TrustManager build() throws GeneralSecurityException {
+      if (children.length == 0) {
+        return(new DenyAllTrustManager());
+      }
+
+      // the mode has to be set before adding 2+ managers
+
+      CompositeTrustManager result=
+          (all ? CompositeTrustManager.matchAll()
+              : CompositeTrustManager.matchAny());
+
+      for (Node child : children) {
+        result.add(child.build());
+      }
+
+      return(result);
+    }
+
+    // "all" validates if any child does; "any" only if every
+    // child does
+
+    @Override
+    boolean validates() {
+      for (Node child : children) {
+        if (child.validates() == all) {
+          return(all);
+        }
+      }
+
+      return(!all);
+    }
+
+    @Override
+    void write(DataOutputStream out) throws IOException {
+      out.writeByte(all ? ALL : ANY);
+      out.writeInt(children.length);
+
+      for (Node child : children) {
+        child.write(out);
+      }
+    }
+  }
+
+  private static class Default extends Node {
+    @Override
+    X509TrustManager build() throws GeneralSecurityException {
+      TrustManagerFactory tmf=
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+
+      tmf.init((KeyStore)null);
+
+      return(firstX509(tmf.getTrustManagers()));
+    }
+
+    @Override
+    boolean validates() {
+      return(true);
+    }
+
+    @Override
+    void write(DataOutputStream out) throws IOException {
+      out.writeByte(DEFAULT);
+    }
+  }
+
+  private static class Deny extends Node {
+    @Override
+    X509TrustManager build() {
+      return(new DenyAllTrustManager());
+    }
+
+    @Override
+    boolean validates() {
+      return(true);
+    }
+
+    @Override
+    void write(DataOutputStream out) throws IOException {
+      out.writeByte(DENY);
+    }
+  }
+
+  private static class Anchors extends Node {
+    final String certType;
+    final byte[][] certs;
+
+    Anchors(String certType, byte[][] certs) {
+      this.certType=certType;
+      this.certs=certs;
+    }
+
+    @Override
+    X509TrustManager build() throws GeneralSecurityException {
+      CertificateFactory cf=CertificateFactory.getInstance(certType);
+      KeyStore store=KeyStore.getInstance(KeyStore.getDefaultType());
+
+      try {
+        store.load(null, null);
+      }
+      catch (IOException e) {
+        throw new GeneralSecurityException(e);
+      }
+
+      for (int i=0; i < certs.length; i++) {
+        Certificate cert=
+            cf.generateCertificate(new ByteArrayInputStream(certs[i]));
+
+        store.setCertificateEntry("ca" + i, cert);
+      }
+
+      TrustManagerFactory tmf=
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+
+      tmf.init(store);
+
+      return(firstX509(tmf.getTrustManagers()));
+    }
+
+    @Override
+    boolean validates() {
+      return(true);
+    }
+
+    @Override
+    void write(DataOutputStream out) throws IOException {
+      out.writeByte(ANCHORS);
+      out.writeUTF(certType);
+      writeByteArrays(out, certs);
+    }
+  }
+
+  private static class Pins extends Node {
+    final byte[][] pins;
+
+    Pins(byte[][] pins) {
+      this.pins=pins;
+    }
+
+    @Override
+    X509TrustManager build() {
+      return(new PinningTrustManager(pins));
+    }
+
+    @Override
+    boolean validates() {
+      return(false);
+    }
+
+    @Override
+    void write(DataOutputStream out) throws IOException {
+      out.writeByte(PINS);
+      writeByteArrays(out, pins);
+    }
+  }
+
+  private abstract static class Origin {
+    abstract String getIdentity();
+
+    abstract InputStream openPolicy() throws IOException;
+
+    abstract InputStream open(String path) throws IOException;
+
+    /**
+     * @return the file whose changes would mean the content
+     *         at this path has changed (null for the policy
+     *         itself)
+     */
+    abstract File getSource(String path);
+  }
+
+  private static class AssetOrigin extends Origin {
+    final Context ctxt;
+    final String assetPath;
+
+    AssetOrigin(Context ctxt, String assetPath) {
+      this.ctxt=ctxt;
+      this.assetPath=assetPath;
+    }
+
+    @Override
+    String getIdentity() {
+      return("asset:" + assetPath);
+    }
+
+    @Override
+    InputStream openPolicy() throws IOException {
+      return(ctxt.getAssets().open(assetPath));
+    }
+
+    @Override
+    InputStream open(String path) throws IOException {
+      return(ctxt.getAssets().open(path));
+    }
+
+    // assets only change when the APK does
+
+    @Override
+    File getSource(String path) {
+      return(new File(ctxt.getApplicationInfo().sourceDir));
+    }
+  }
+
+  private static class FileOrigin extends Origin {
+    final File policy;
+
+    FileOrigin(File policy) {
+      this.policy=policy.getAbsoluteFile();
+    }
+
+    @Override
+    String getIdentity() {
+      return("file:" + policy.getPath());
+    }
+
+    @Override
+    InputStream openPolicy() throws IOException {
+      return(new FileInputStream(policy));
+    }
+
+    @Override
+    InputStream open(String path) throws IOException {
+      return(new FileInputStream(getSource(path)));
+    }
+
+    @Override
+    File getSource(String path) {
+      if (path == null) {
+        return(policy);
+      }
+
+      File f=new File(path);
+
+      return(f.isAbsolute() ? f : new File(policy.getParentFile(), path));
+    }
+  }
+}